@@ -0,0 +1,264 @@
+package beliefPropagation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.Factor;
+
+/**
+ * The factor graph of a Bayes Net, with a factor for the conditional
+ * probability table of each variable and an edge between each factor and each
+ * variable of its table, along with the buffers for the messages sent both
+ * ways along every edge.
+ *
+ * All messages are held in flat arrays allocated once, two cells per edge for
+ * the false and true values, and are kept normalised. Evidence is held as an
+ * indicator for each variable, so observing a variable does not change the
+ * shape of the graph.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class FactorGraph {
+
+	// The table of each factor, laid out as a Factor.
+	final double[][] tables;
+	// The edges of each factor, and the bit of the variable of each in the
+	// factor's table.
+	final int[][] factorEdges;
+
+	// The factor and variable ordinal at either end of each edge.
+	final int[] edgeFactor;
+	final int[] edgeVar;
+	final int[] edgeBit;
+
+	// The edges of each variable, indexed by ordinal.
+	final int[][] varEdges;
+
+	// Factor to variable and variable to factor messages, two cells per edge.
+	final double[] factorMessages;
+	final double[] varMessages;
+
+	// The evidence indicator of each variable, two cells per ordinal.
+	final double[] evidence;
+
+	/**
+	 * Builds the factor graph of the given Bayes net.
+	 *
+	 * @param network
+	 */
+	FactorGraph(BayesNet network) {
+		List<double[]> tableList = new ArrayList<double[]>();
+		List<int[]> factorEdgeList = new ArrayList<int[]>();
+		List<Integer> edgeFactorList = new ArrayList<Integer>();
+		List<Integer> edgeVarList = new ArrayList<Integer>();
+		List<Integer> edgeBitList = new ArrayList<Integer>();
+
+		for (VariableType var : network.getVariables()) {
+			Factor table = Factor.createConditionalFactor(var,
+					network.getParents(var), network.getProbabilities(var));
+			int factor = tableList.size();
+			tableList.add(table.getValues());
+
+			// The variables of a Factor are stored so their index is their bit.
+			VariableType[] vars = table.getVariables();
+			int[] edges = new int[vars.length];
+			for (int bit = 0; bit < vars.length; bit++) {
+				edges[bit] = edgeFactorList.size();
+				edgeFactorList.add(factor);
+				edgeVarList.add(vars[bit].ordinal());
+				edgeBitList.add(bit);
+			}
+			factorEdgeList.add(edges);
+		}
+
+		tables = tableList.toArray(new double[0][]);
+		factorEdges = factorEdgeList.toArray(new int[0][]);
+		edgeFactor = toIntArray(edgeFactorList);
+		edgeVar = toIntArray(edgeVarList);
+		edgeBit = toIntArray(edgeBitList);
+
+		int numVars = VariableType.values().length;
+		int[] degree = new int[numVars];
+		for (int var : edgeVar) {
+			degree[var]++;
+		}
+		varEdges = new int[numVars][];
+		for (int v = 0; v < numVars; v++) {
+			varEdges[v] = new int[degree[v]];
+			degree[v] = 0;
+		}
+		for (int e = 0; e < edgeVar.length; e++) {
+			varEdges[edgeVar[e]][degree[edgeVar[e]]++] = e;
+		}
+
+		factorMessages = new double[edgeVar.length * 2];
+		varMessages = new double[edgeVar.length * 2];
+		evidence = new double[numVars * 2];
+		resetEvidence();
+		resetMessages();
+	}
+
+	/**
+	 * Returns the number of edges.
+	 *
+	 * @return
+	 */
+	int getEdgeCount() {
+		return edgeVar.length;
+	}
+
+	/**
+	 * Sets an observation of a variable.
+	 *
+	 * @param var
+	 * @param observation
+	 */
+	void setEvidenceObservation(VariableType var, boolean observation) {
+		evidence[var.ordinal() * 2] = observation ? 0 : 1;
+		evidence[var.ordinal() * 2 + 1] = observation ? 1 : 0;
+	}
+
+	/**
+	 * Removes all observations.
+	 */
+	void resetEvidence() {
+		Arrays.fill(evidence, 1);
+	}
+
+	/**
+	 * Sets every message back to uniform, and the messages from each variable
+	 * to its evidence.
+	 */
+	void resetMessages() {
+		Arrays.fill(factorMessages, 0.5);
+		for (int v = 0; v < varEdges.length; v++) {
+			updateVariableMessages(v);
+		}
+	}
+
+	/**
+	 * Computes the message from the factor of an edge to its variable, given
+	 * the messages currently sent to the factor by its other variables, and
+	 * writes it normalised to the given buffer at the given offset.
+	 *
+	 * @param edge
+	 * @param output
+	 * @param offset
+	 */
+	void computeFactorMessage(int edge, double[] output, int offset) {
+		int factor = edgeFactor[edge];
+		double[] table = tables[factor];
+		int[] edges = factorEdges[factor];
+		int bit = edgeBit[edge];
+
+		double falseSum = 0;
+		double trueSum = 0;
+		for (int c = 0; c < table.length; c++) {
+			double value = table[c];
+			for (int i = 0; i < edges.length; i++) {
+				if (i != bit) {
+					value *= varMessages[edges[i] * 2 + ((c >> i) & 1)];
+				}
+			}
+			if (((c >> bit) & 1) == 0) {
+				falseSum += value;
+			} else {
+				trueSum += value;
+			}
+		}
+
+		normalise(falseSum, trueSum, output, offset);
+	}
+
+	/**
+	 * Recomputes the messages from a variable to each of its factors, as the
+	 * product of its evidence and the messages from its other factors.
+	 *
+	 * @param var
+	 */
+	void updateVariableMessages(int var) {
+		int[] edges = varEdges[var];
+		for (int i = 0; i < edges.length; i++) {
+			double falseVal = evidence[var * 2];
+			double trueVal = evidence[var * 2 + 1];
+			for (int j = 0; j < edges.length; j++) {
+				if (j != i) {
+					falseVal *= factorMessages[edges[j] * 2];
+					trueVal *= factorMessages[edges[j] * 2 + 1];
+				}
+			}
+			normalise(falseVal, trueVal, varMessages, edges[i] * 2);
+		}
+	}
+
+	/**
+	 * Returns the belief in a true value of the variable, as the normalised
+	 * product of its evidence and all the messages from its factors.
+	 *
+	 * @param var
+	 * @return
+	 */
+	double getBelief(VariableType var) {
+		int v = var.ordinal();
+		double falseVal = evidence[v * 2];
+		double trueVal = evidence[v * 2 + 1];
+		for (int edge : varEdges[v]) {
+			falseVal *= factorMessages[edge * 2];
+			trueVal *= factorMessages[edge * 2 + 1];
+		}
+		return trueVal / (falseVal + trueVal);
+	}
+
+	/**
+	 * Mixes a current message into a new message in place, keeping the given
+	 * fraction of the current one, and returns how far the new message is
+	 * from the current.
+	 *
+	 * @param next
+	 * @param nextOffset
+	 * @param current
+	 * @param currentOffset
+	 * @param damping
+	 * @return
+	 */
+	static double damp(double[] next, int nextOffset, double[] current,
+			int currentOffset, double damping) {
+		double falseVal = (1 - damping) * next[nextOffset] + damping
+				* current[currentOffset];
+		double trueVal = (1 - damping) * next[nextOffset + 1] + damping
+				* current[currentOffset + 1];
+		next[nextOffset] = falseVal;
+		next[nextOffset + 1] = trueVal;
+		return Math.max(Math.abs(falseVal - current[currentOffset]),
+				Math.abs(trueVal - current[currentOffset + 1]));
+	}
+
+	/**
+	 * Writes a false and true value to a buffer scaled to sum to 1, or
+	 * uniform if both are 0.
+	 */
+	private static void normalise(double falseVal, double trueVal,
+			double[] output, int offset) {
+		double sum = falseVal + trueVal;
+		if (sum == 0) {
+			output[offset] = 0.5;
+			output[offset + 1] = 0.5;
+		} else {
+			output[offset] = falseVal / sum;
+			output[offset + 1] = trueVal / sum;
+		}
+	}
+
+	private static int[] toIntArray(List<Integer> list) {
+		int[] output = new int[list.size()];
+		for (int i = 0; i < output.length; i++) {
+			output[i] = list.get(i);
+		}
+		return output;
+	}
+}
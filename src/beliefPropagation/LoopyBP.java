@@ -0,0 +1,252 @@
+package beliefPropagation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import util.BayesNet;
+import util.InferenceEngine;
+import util.VariableType;
+
+/**
+ * A Bayes Net used for computing approximate queries using loopy belief
+ * propagation.
+ *
+ * Messages are passed along the edges of the factor graph of the network
+ * until no message changes by more than the tolerance, or the iteration limit
+ * is reached. On a network without loops this gives the exact marginals, with
+ * loops it gives an approximation in a few sweeps whose cost does not depend
+ * on the treewidth.
+ *
+ * Messages are either all updated together each sweep, or one at a time with
+ * the message that would change the most always updated first. Damping mixes
+ * part of the old message into each update, which helps networks that would
+ * otherwise oscillate.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class LoopyBP implements InferenceEngine {
+
+	private BayesNet network;
+	private long networkVersion;
+
+	private FactorGraph graph;
+	private EnumMap<VariableType, Boolean> evidence;
+	private boolean converged;
+
+	private double damping = 0;
+	private double tolerance = 1e-6;
+	private int maxIterations = 100;
+	private boolean residualScheduling;
+
+	private ForkJoinPool pool;
+	private int parallelism = 1;
+
+	private int iterations;
+	private long updates;
+
+	/**
+	 * Sets up loopy belief propagation for the example Bayes Net.
+	 */
+	public LoopyBP() {
+		this(BayesNet.createExampleBayesNet());
+	}
+
+	/**
+	 * Sets up loopy belief propagation for the given Bayes Net.
+	 *
+	 * @param network
+	 */
+	public LoopyBP(BayesNet network) {
+		this.network = network;
+		this.evidence = new EnumMap<VariableType, Boolean>(VariableType.class);
+	}
+
+	/**
+	 * Sets the fraction of the old message kept in each update, from 0 for no
+	 * damping up to but not including 1.
+	 *
+	 * @param damping
+	 */
+	public void setDamping(double damping) {
+		if (damping < 0 || damping >= 1) {
+			throw new IllegalArgumentException("damping must be in [0, 1)");
+		}
+		this.damping = damping;
+		converged = false;
+	}
+
+	/**
+	 * Sets the largest change in any message at which the messages are taken
+	 * to have converged.
+	 *
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+		converged = false;
+	}
+
+	/**
+	 * Sets the most sweeps over the messages before giving up on convergence.
+	 * With residual scheduling a sweep is as many updates as there are edges.
+	 *
+	 * @param maxIterations
+	 */
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1) {
+			throw new IllegalArgumentException("maxIterations must be positive");
+		}
+		this.maxIterations = maxIterations;
+		converged = false;
+	}
+
+	/**
+	 * Turns on updating one message at a time, largest change first. With a
+	 * parallelism above 1, workers update the largest changes concurrently.
+	 */
+	public void turnOnResidualScheduling() {
+		residualScheduling = true;
+		converged = false;
+	}
+
+	/**
+	 * Turns off residual scheduling, updating every message each sweep.
+	 */
+	public void turnOffResidualScheduling() {
+		residualScheduling = false;
+		converged = false;
+	}
+
+	/**
+	 * Sets the number of workers updating messages concurrently under
+	 * residual scheduling. A parallelism of 1 or less updates every message on
+	 * the calling thread.
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		this.parallelism = Math.max(parallelism, 1);
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Returns the number of sweeps taken by the last propagation.
+	 *
+	 * @return
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Returns the number of factor messages updated by the last propagation.
+	 *
+	 * @return
+	 */
+	public long getUpdateCount() {
+		return updates;
+	}
+
+	/**
+	 * Returns the Bayes Net queries are computed against.
+	 *
+	 * @return
+	 */
+	public BayesNet getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Removes all evidence observations.
+	 */
+	public void resetBayesNet() {
+		evidence.clear();
+		converged = false;
+	}
+
+	/**
+	 * Set a variable type to observed.
+	 *
+	 * @param var
+	 * @param observation
+	 */
+	public void setEvidenceObservation(VariableType var, boolean observation) {
+		evidence.put(var, observation);
+		converged = false;
+	}
+
+	/**
+	 * Returns the approximate probability of a true assignment to the query
+	 * variable given the evidence. Messages are only propagated again once
+	 * the evidence or the network changes, so querying several variables with
+	 * the same evidence costs one propagation.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public double computeQuery(VariableType var) {
+		if (graph == null || network.getVersion() != networkVersion) {
+			graph = new FactorGraph(network);
+			networkVersion = network.getVersion();
+			converged = false;
+		}
+
+		if (!converged) {
+			graph.resetEvidence();
+			for (Map.Entry<VariableType, Boolean> entry : evidence.entrySet()) {
+				graph.setEvidenceObservation(entry.getKey(), entry.getValue());
+			}
+			graph.resetMessages();
+
+			if (residualScheduling) {
+				ResidualScheduler scheduler = new ResidualScheduler(graph,
+						damping, tolerance, (long) maxIterations
+								* graph.getEdgeCount());
+				updates = (pool == null) ? scheduler.run() : scheduler.run(
+						pool, parallelism);
+				iterations = (int) Math.ceil((double) updates
+						/ Math.max(graph.getEdgeCount(), 1));
+			} else {
+				propagateSynchronous();
+			}
+			converged = true;
+		}
+
+		return graph.getBelief(var);
+	}
+
+	/**
+	 * Updates every factor message from the same variable messages each
+	 * sweep, then every variable message, until converged.
+	 */
+	private void propagateSynchronous() {
+		int numEdges = graph.getEdgeCount();
+		double[] next = new double[numEdges * 2];
+
+		updates = 0;
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
+			double maxResidual = 0;
+			for (int e = 0; e < numEdges; e++) {
+				graph.computeFactorMessage(e, next, e * 2);
+				maxResidual = Math.max(maxResidual, FactorGraph.damp(next,
+						e * 2, graph.factorMessages, e * 2, damping));
+			}
+			System.arraycopy(next, 0, graph.factorMessages, 0, next.length);
+			for (int v = 0; v < graph.varEdges.length; v++) {
+				graph.updateVariableMessages(v);
+			}
+			updates += numEdges;
+
+			if (maxResidual < tolerance) {
+				break;
+			}
+		}
+		iterations = Math.min(iterations, maxIterations);
+	}
+}
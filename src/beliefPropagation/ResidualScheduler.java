@@ -0,0 +1,280 @@
+package beliefPropagation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Passes the messages of a factor graph asynchronously, always updating the
+ * factor message whose pending update would change it the most.
+ *
+ * The pending update of every factor message and its residual, how far it is
+ * from the current message, are kept up to date. Workers take the largest
+ * residual from a shared priority queue, apply that update, and recompute the
+ * pending updates of the factor messages that depend on it, pushing their new
+ * residuals. Entries made stale by a later recomputation are skipped, and
+ * entries below the tolerance are dropped, so propagation ends once the queue
+ * drains.
+ *
+ * All the state of an edge belongs to its variable, so edges are locked by
+ * variable, striped over a fixed set of locks. Computing a factor message
+ * reads the messages of its other variables without locking them, as any
+ * recent value will do for asynchronous updates. Once the workers finish,
+ * every message is checked again on the calling thread, so an update lost to
+ * such a race is still made.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class ResidualScheduler {
+
+	private static final int STRIPES = 64;
+
+	// How long an idle worker waits for more residuals before checking
+	// whether every other worker has finished too.
+	private static final long IDLE_WAIT_MICROS = 500;
+
+	private final FactorGraph graph;
+	private final double damping;
+	private final double tolerance;
+	private final long maxUpdates;
+
+	private final double[] pending;
+	private final double[] residuals;
+	private final ReentrantLock[] locks;
+
+	private final PriorityBlockingQueue<Residual> queue;
+	private final AtomicLong updates;
+	private final AtomicInteger active;
+
+	/**
+	 * Creates a scheduler for the given graph, making at most maxUpdates
+	 * updates.
+	 *
+	 * @param graph
+	 * @param damping
+	 * @param tolerance
+	 * @param maxUpdates
+	 */
+	ResidualScheduler(FactorGraph graph, double damping, double tolerance,
+			long maxUpdates) {
+		this.graph = graph;
+		this.damping = damping;
+		this.tolerance = tolerance;
+		this.maxUpdates = maxUpdates;
+
+		int numEdges = graph.getEdgeCount();
+		pending = new double[numEdges * 2];
+		residuals = new double[numEdges];
+		locks = new ReentrantLock[STRIPES];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+
+		queue = new PriorityBlockingQueue<Residual>(Math.max(numEdges, 1));
+		updates = new AtomicLong();
+		active = new AtomicInteger();
+	}
+
+	/**
+	 * Propagates on the calling thread until converged, returning the number
+	 * of updates made.
+	 *
+	 * @return
+	 */
+	long run() {
+		seed();
+		new Worker().run();
+		return updates.get();
+	}
+
+	/**
+	 * Propagates with the given number of workers on the pool until
+	 * converged, returning the number of updates made.
+	 *
+	 * @param pool
+	 * @param workers
+	 * @return
+	 */
+	long run(ForkJoinPool pool, int workers) {
+		seed();
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < workers; i++) {
+			futures.add(pool.submit(new Worker()));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		// A pending update computed from messages that were changing at the
+		// time can overwrite a later one, so check every message again,
+		// unless the update limit has already been reached.
+		if (updates.get() < maxUpdates) {
+			seed();
+			new Worker().run();
+		}
+		return updates.get();
+	}
+
+	/**
+	 * Computes the pending update of every factor message.
+	 */
+	private void seed() {
+		double[] message = new double[2];
+		for (int e = 0; e < residuals.length; e++) {
+			recompute(e, message);
+		}
+	}
+
+	/**
+	 * Recomputes the pending update of a factor message and queues its
+	 * residual.
+	 *
+	 * @param edge
+	 * @param message
+	 */
+	private void recompute(int edge, double[] message) {
+		graph.computeFactorMessage(edge, message, 0);
+
+		double residual;
+		ReentrantLock lock = lockOf(edge);
+		lock.lock();
+		try {
+			residual = FactorGraph.damp(message, 0, graph.factorMessages,
+					edge * 2, damping);
+			pending[edge * 2] = message[0];
+			pending[edge * 2 + 1] = message[1];
+			residuals[edge] = residual;
+		} finally {
+			lock.unlock();
+		}
+
+		if (residual >= tolerance) {
+			queue.add(new Residual(edge, residual));
+		}
+	}
+
+	/**
+	 * Applies the pending update of a factor message if it is still the
+	 * latest, and updates the messages its variable sends. Returns false if
+	 * the entry was stale.
+	 *
+	 * @param top
+	 * @return
+	 */
+	private boolean apply(Residual top) {
+		int edge = top.edge;
+		ReentrantLock lock = lockOf(edge);
+		lock.lock();
+		try {
+			if (top.residual != residuals[edge]) {
+				return false;
+			}
+			graph.factorMessages[edge * 2] = pending[edge * 2];
+			graph.factorMessages[edge * 2 + 1] = pending[edge * 2 + 1];
+			residuals[edge] = 0;
+			graph.updateVariableMessages(graph.edgeVar[edge]);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ReentrantLock lockOf(int edge) {
+		return locks[graph.edgeVar[edge] % STRIPES];
+	}
+
+	/**
+	 * Takes the largest residuals off the queue until it drains or the update
+	 * limit is reached.
+	 */
+	private class Worker implements Runnable {
+
+		private final double[] message = new double[2];
+
+		public void run() {
+			while (updates.get() < maxUpdates) {
+				active.incrementAndGet();
+				Residual top = queue.poll();
+				if (top == null) {
+					active.decrementAndGet();
+					if (active.get() == 0 && queue.isEmpty()) {
+						return;
+					}
+
+					// Another worker may still be about to queue more, so
+					// wait for it without counting as active. Should the
+					// others finish meanwhile, this worker carries on alone.
+					try {
+						top = queue.poll(IDLE_WAIT_MICROS,
+								TimeUnit.MICROSECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					if (top == null) {
+						continue;
+					}
+					active.incrementAndGet();
+				}
+
+				try {
+					if (!apply(top)) {
+						continue;
+					}
+					updates.incrementAndGet();
+
+					// The variable now sends new messages to its other
+					// factors, which changes what those factors send to their
+					// other variables.
+					int var = graph.edgeVar[top.edge];
+					for (int varEdge : graph.varEdges[var]) {
+						if (varEdge == top.edge) {
+							continue;
+						}
+						for (int e : graph.factorEdges[graph.edgeFactor[varEdge]]) {
+							if (e != varEdge) {
+								recompute(e, message);
+							}
+						}
+					}
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A pending update of a factor message, ordered largest change first.
+	 */
+	private static class Residual implements Comparable<Residual> {
+		final int edge;
+		final double residual;
+
+		Residual(int edge, double residual) {
+			this.edge = edge;
+			this.residual = residual;
+		}
+
+		public int compareTo(Residual that) {
+			return Double.compare(that.residual, this.residual);
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package learning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.ArithmeticCircuit;
+import variableElimination.Factor;
+
+/**
+ * Learns the conditional probability tables of a Bayes Net from observations
+ * with missing values by Expectation-Maximisation, keeping the structure of
+ * the network as it is.
+ *
+ * Records are kept only as the number of times each evidence pattern, the
+ * variables observed and their values, was seen. Each iteration infers the
+ * probability of every family assignment given each distinct pattern, weighs
+ * them by how often the pattern was seen to give expected counts, and sets
+ * the tables to the estimates from those counts.
+ *
+ * Inference runs on an arithmetic circuit compiled from the network once per
+ * call to learn. One upward and one downward pass over the circuit give the
+ * marginals of every family for a pattern, and only the probabilities change
+ * between iterations, so the circuit is reused throughout. With a parallelism
+ * above 1 the patterns are split between workers, each with its own
+ * evaluator and expected counts, merged at the end of the iteration.
+ *
+ * The tables are estimated with the same Dirichlet smoothing as the
+ * ParameterLearner.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class EMLearner {
+
+	private final BayesNet network;
+	private final VariableType[] eliminationOrder;
+
+	// The number of records seen with each evidence pattern, keyed by the
+	// mask of observed variables in the high half and the mask of true
+	// variables in the low half.
+	private final Map<Long, long[]> patterns = new HashMap<Long, long[]>();
+
+	private double pseudoCount = 1;
+	private int maxIterations = 100;
+	private double tolerance = 1e-6;
+	private int iterations;
+
+	private ForkJoinPool pool;
+	private int parallelism = 1;
+
+	/**
+	 * Creates a learner for the tables of the given Bayes net, compiling it
+	 * with the given elimination order.
+	 *
+	 * @param network
+	 * @param eliminationOrder
+	 */
+	public EMLearner(BayesNet network, VariableType... eliminationOrder) {
+		this.network = network;
+		this.eliminationOrder = eliminationOrder;
+	}
+
+	/**
+	 * Sets the Dirichlet pseudo count added to every expected false and true
+	 * count. 0 gives the maximum likelihood estimate.
+	 *
+	 * @param pseudoCount
+	 */
+	public void setPseudoCount(double pseudoCount) {
+		if (pseudoCount < 0) {
+			throw new IllegalArgumentException("pseudoCount must not be negative");
+		}
+		this.pseudoCount = pseudoCount;
+	}
+
+	/**
+	 * Sets the largest number of iterations made by learn.
+	 *
+	 * @param maxIterations
+	 */
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1) {
+			throw new IllegalArgumentException("maxIterations must be positive");
+		}
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Sets how little the log likelihood of the records may rise in an
+	 * iteration before learning stops.
+	 *
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		if (tolerance < 0) {
+			throw new IllegalArgumentException("tolerance must not be negative");
+		}
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Sets the number of threads inferring expected counts concurrently. A
+	 * parallelism of 1 or less infers every pattern on the calling thread.
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		this.parallelism = Math.max(parallelism, 1);
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Returns the number of iterations made by the last call to learn.
+	 *
+	 * @return
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Returns the number of distinct evidence patterns in the records so far.
+	 *
+	 * @return
+	 */
+	public int getPatternCount() {
+		return patterns.size();
+	}
+
+	/**
+	 * Adds one record, given as the observed value of each variable.
+	 * Variables not in the map are missing.
+	 *
+	 * @param record
+	 */
+	public void count(Map<VariableType, Boolean> record) {
+		int observed = 0;
+		int values = 0;
+		for (Map.Entry<VariableType, Boolean> entry : record.entrySet()) {
+			observed |= 1 << entry.getKey().ordinal();
+			if (entry.getValue()) {
+				values |= 1 << entry.getKey().ordinal();
+			}
+		}
+		count(observed, values, 1);
+	}
+
+	/**
+	 * Adds every record of a CSV with a header line naming the variable of
+	 * each column, returning the number of records read.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public long count(Reader in) throws IOException {
+		RecordReader reader = new RecordReader(in);
+		int[] record = new int[2];
+		long records = 0;
+		while (reader.next(record, 0)) {
+			count(record[0], record[1], 1);
+			records++;
+		}
+		return records;
+	}
+
+	private void count(int observed, int values, long times) {
+		Long key = ((long) observed << 32) | (values & 0xffffffffL);
+		long[] count = patterns.get(key);
+		if (count == null) {
+			patterns.put(key, new long[] { times });
+		} else {
+			count[0] += times;
+		}
+	}
+
+	/**
+	 * Discards all records.
+	 */
+	public void reset() {
+		patterns.clear();
+	}
+
+	/**
+	 * Runs Expectation-Maximisation from the current tables of the Bayes net
+	 * until the log likelihood of the records stops rising or the iteration
+	 * limit is reached, setting the tables after every iteration. Returns the
+	 * log likelihood of the records under the tables the last iteration
+	 * started from.
+	 *
+	 * Records that are impossible under the tables of an iteration are left
+	 * out of that iteration.
+	 *
+	 * @return
+	 */
+	public double learn() {
+		ArithmeticCircuit circuit = ArithmeticCircuit.compile(network,
+				eliminationOrder);
+		int[][] countIndices = createCountIndices();
+
+		int numPatterns = patterns.size();
+		int[] observed = new int[numPatterns];
+		int[] values = new int[numPatterns];
+		long[] weights = new long[numPatterns];
+		int p = 0;
+		for (Map.Entry<Long, long[]> entry : patterns.entrySet()) {
+			observed[p] = (int) (entry.getKey() >>> 32);
+			values[p] = (int) entry.getKey().longValue();
+			weights[p] = entry.getValue()[0];
+			p++;
+		}
+
+		double logLikelihood = Double.NEGATIVE_INFINITY;
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
+			Expectation expectation;
+			if (pool == null || numPatterns < parallelism) {
+				expectation = new Expectation(circuit, countIndices, observed,
+						values, weights, 0, numPatterns).call();
+			} else {
+				expectation = expectInParallel(circuit, countIndices, observed,
+						values, weights);
+			}
+			maximise(expectation.counts);
+
+			double previous = logLikelihood;
+			logLikelihood = expectation.logLikelihood;
+			if (logLikelihood - previous <= tolerance) {
+				break;
+			}
+		}
+		iterations = Math.min(iterations, maxIterations);
+		return logLikelihood;
+	}
+
+	/**
+	 * Splits the patterns between the workers and merges their expectations.
+	 */
+	private Expectation expectInParallel(ArithmeticCircuit circuit,
+			int[][] countIndices, int[] observed, int[] values, long[] weights) {
+		List<Future<Expectation>> futures = new ArrayList<Future<Expectation>>();
+		for (int i = 0; i < parallelism; i++) {
+			int from = (int) ((long) observed.length * i / parallelism);
+			int to = (int) ((long) observed.length * (i + 1) / parallelism);
+			futures.add(pool.submit(new Expectation(circuit, countIndices,
+					observed, values, weights, from, to)));
+		}
+
+		Expectation total = null;
+		for (Future<Expectation> future : futures) {
+			Expectation partial;
+			try {
+				partial = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+			if (total == null) {
+				total = partial;
+				continue;
+			}
+			total.logLikelihood += partial.logLikelihood;
+			for (int v = 0; v < total.counts.length; v++) {
+				if (total.counts[v] == null) {
+					continue;
+				}
+				for (int i = 0; i < total.counts[v].length; i++) {
+					total.counts[v][i] += partial.counts[v][i];
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Sets the tables of the Bayes net to those estimated from the expected
+	 * counts.
+	 */
+	private void maximise(double[][] counts) {
+		for (VariableType var : network.getVariables()) {
+			double[] familyCounts = counts[var.ordinal()];
+			double[] probabilities = new double[familyCounts.length / 2];
+			for (int i = 0; i < probabilities.length; i++) {
+				probabilities[i] = ParameterLearner.estimate(familyCounts[i * 2],
+						familyCounts[i * 2 + 1], pseudoCount);
+			}
+			network.setConditionalProbabilities(var, probabilities);
+		}
+	}
+
+	/**
+	 * Returns, for each variable, the index into its counts of each cell of
+	 * its table laid out as a Factor. Counts are indexed by the assignment to
+	 * the parents, first parent as the most significant bit, then the value
+	 * of the variable.
+	 *
+	 * @return
+	 */
+	private int[][] createCountIndices() {
+		int[][] output = new int[VariableType.values().length][];
+		for (VariableType var : network.getVariables()) {
+			VariableType[] parents = network.getParents(var);
+			VariableType[] factorVars = Factor.createConditionalFactor(var,
+					parents, network.getProbabilities(var)).getVariables();
+
+			int[] indices = new int[1 << factorVars.length];
+			for (int c = 0; c < indices.length; c++) {
+				int index = 0;
+				for (VariableType parent : parents) {
+					index = (index << 1) | bitOf(c, parent, factorVars);
+				}
+				indices[c] = (index << 1) | bitOf(c, var, factorVars);
+			}
+			output[var.ordinal()] = indices;
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the value of a variable in a cell of a Factor over the given
+	 * variables, the variable at position k being bit k.
+	 */
+	private static int bitOf(int cell, VariableType var,
+			VariableType[] factorVars) {
+		for (int k = 0; k < factorVars.length; k++) {
+			if (factorVars[k] == var) {
+				return (cell >> k) & 1;
+			}
+		}
+		throw new IllegalArgumentException(var + " is not in the factor");
+	}
+
+	/**
+	 * Infers the expected counts and log likelihood of a range of the
+	 * patterns with an evaluator of its own.
+	 */
+	private class Expectation implements Callable<Expectation> {
+
+		private final ArithmeticCircuit circuit;
+		private final int[][] countIndices;
+		private final int[] observed;
+		private final int[] values;
+		private final long[] weights;
+		private final int from;
+		private final int to;
+
+		double[][] counts;
+		double logLikelihood;
+
+		Expectation(ArithmeticCircuit circuit, int[][] countIndices,
+				int[] observed, int[] values, long[] weights, int from, int to) {
+			this.circuit = circuit;
+			this.countIndices = countIndices;
+			this.observed = observed;
+			this.values = values;
+			this.weights = weights;
+			this.from = from;
+			this.to = to;
+		}
+
+		public Expectation call() {
+			ArithmeticCircuit.Evaluator evaluator = circuit.newEvaluator();
+			evaluator.setTables(network);
+
+			VariableType[] types = VariableType.values();
+			counts = new double[countIndices.length][];
+			double[][] marginals = new double[countIndices.length][];
+			for (int v = 0; v < counts.length; v++) {
+				if (countIndices[v] != null) {
+					counts[v] = new double[countIndices[v].length];
+					marginals[v] = new double[countIndices[v].length];
+				}
+			}
+
+			for (int p = from; p < to; p++) {
+				evaluator.resetEvidence();
+				for (int v = 0; v < types.length; v++) {
+					if ((observed[p] & (1 << v)) != 0 && countIndices[v] != null) {
+						evaluator.setEvidenceObservation(types[v],
+								(values[p] & (1 << v)) != 0);
+					}
+				}
+				evaluator.evaluate();
+
+				double evidence = evaluator.getProbabilityOfEvidence();
+				if (evidence <= 0) {
+					continue;
+				}
+				logLikelihood += weights[p] * Math.log(evidence);
+
+				for (int v = 0; v < counts.length; v++) {
+					if (counts[v] == null) {
+						continue;
+					}
+					evaluator.getFamilyMarginal(types[v], marginals[v]);
+					for (int c = 0; c < marginals[v].length; c++) {
+						counts[v][countIndices[v][c]] += weights[p]
+								* marginals[v][c];
+					}
+				}
+			}
+			return this;
+		}
+	}
+}
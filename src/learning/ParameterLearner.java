@@ -0,0 +1,345 @@
+package learning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * Learns the conditional probability tables of a Bayes Net from complete
+ * observations, keeping the structure of the network as it is.
+ *
+ * Records are streamed and counted per family: for each variable, how often
+ * it was false and true under each assignment to its parents. The counts are
+ * all that is kept, so memory does not grow with the data. Records missing a
+ * value in a family are not counted for that family.
+ *
+ * With a parallelism above 1 the calling thread parses the records into
+ * batches, and workers count the batches into counts of their own, merged
+ * when the input ends. A bounded queue of batches holds back the reader when
+ * the workers fall behind.
+ *
+ * The tables are estimated with Dirichlet smoothing, adding a pseudo count to
+ * every false and true count, so values never seen don't get a probability
+ * of 0.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class ParameterLearner {
+
+	private static final int BATCH_SIZE = 4096;
+	private static final int QUEUED_BATCHES = 16;
+
+	private final BayesNet network;
+
+	// The parents of each variable as ordinals, and the counts for each of
+	// its families, indexed by ordinal. Counts are indexed by the assignment
+	// to the parents, first parent as the most significant bit, then the
+	// value of the variable.
+	private final int[][] parents;
+	private final long[][] counts;
+
+	private double pseudoCount = 1;
+
+	private ForkJoinPool pool;
+	private int parallelism = 1;
+
+	/**
+	 * Creates a learner for the tables of the given Bayes net.
+	 *
+	 * @param network
+	 */
+	public ParameterLearner(BayesNet network) {
+		this.network = network;
+
+		int numVars = VariableType.values().length;
+		parents = new int[numVars][];
+		counts = new long[numVars][];
+		for (VariableType var : network.getVariables()) {
+			VariableType[] varParents = network.getParents(var);
+			parents[var.ordinal()] = new int[varParents.length];
+			for (int i = 0; i < varParents.length; i++) {
+				parents[var.ordinal()][i] = varParents[i].ordinal();
+			}
+			counts[var.ordinal()] = new long[2 << varParents.length];
+		}
+	}
+
+	/**
+	 * Sets the Dirichlet pseudo count added to every false and true count. 0
+	 * gives the maximum likelihood estimate.
+	 *
+	 * @param pseudoCount
+	 */
+	public void setPseudoCount(double pseudoCount) {
+		if (pseudoCount < 0) {
+			throw new IllegalArgumentException("pseudoCount must not be negative");
+		}
+		this.pseudoCount = pseudoCount;
+	}
+
+	/**
+	 * Sets the number of threads counting records concurrently. A parallelism
+	 * of 1 or less counts every record on the calling thread.
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		this.parallelism = Math.max(parallelism, 1);
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Counts one record, given as the observed value of each variable.
+	 * Variables not in the map are missing.
+	 *
+	 * @param record
+	 */
+	public void count(Map<VariableType, Boolean> record) {
+		int observed = 0;
+		int values = 0;
+		for (Map.Entry<VariableType, Boolean> entry : record.entrySet()) {
+			observed |= 1 << entry.getKey().ordinal();
+			if (entry.getValue()) {
+				values |= 1 << entry.getKey().ordinal();
+			}
+		}
+		synchronized (counts) {
+			count(counts, observed, values);
+		}
+	}
+
+	/**
+	 * Counts every record of a CSV with a header line naming the variable of
+	 * each column, returning the number of records read.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public long count(Reader in) throws IOException {
+		RecordReader reader = new RecordReader(in);
+		if (pool == null) {
+			long[][] local = newCounts();
+			int[] record = new int[2];
+			long records = 0;
+			while (reader.next(record, 0)) {
+				count(local, record[0], record[1]);
+				records++;
+			}
+			merge(local);
+			return records;
+		}
+
+		BlockingQueue<int[]> batches = new ArrayBlockingQueue<int[]>(
+				QUEUED_BATCHES);
+		List<Future<long[][]>> futures = new ArrayList<Future<long[][]>>();
+		for (int i = 0; i < parallelism; i++) {
+			futures.add(pool.submit(new BatchCounter(batches)));
+		}
+
+		long records = 0;
+		boolean complete = false;
+		try {
+			boolean more = true;
+			while (more) {
+				// Each batch holds its number of records first.
+				int[] batch = new int[1 + BATCH_SIZE * 2];
+				int size = 0;
+				while (size < BATCH_SIZE
+						&& (more = reader.next(batch, 1 + size * 2))) {
+					size++;
+				}
+				batch[0] = size;
+				records += size;
+				put(batches, batch);
+			}
+			complete = true;
+		} finally {
+			for (int i = 0; i < parallelism; i++) {
+				put(batches, new int[] { -1 });
+			}
+
+			// Every worker is waited for even if reading failed, so none is
+			// still counting once this returns, but the counts are only kept
+			// if every record was read, as on the sequential path.
+			List<long[][]> locals = new ArrayList<long[][]>();
+			for (Future<long[][]> future : futures) {
+				try {
+					locals.add(future.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			if (complete) {
+				for (long[][] local : locals) {
+					merge(local);
+				}
+			}
+		}
+		return records;
+	}
+
+	private static void put(BlockingQueue<int[]> batches, int[] batch) {
+		try {
+			batches.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the counts for the family of the given variable, indexed by the
+	 * assignment to its parents, first parent as the most significant bit,
+	 * then the value of the variable.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public long[] getCounts(VariableType var) {
+		synchronized (counts) {
+			return counts[var.ordinal()].clone();
+		}
+	}
+
+	/**
+	 * Discards all counts.
+	 */
+	public void reset() {
+		synchronized (counts) {
+			for (long[] familyCounts : counts) {
+				if (familyCounts != null) {
+					Arrays.fill(familyCounts, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the tables of the Bayes net to those estimated from the counts so
+	 * far.
+	 */
+	public void updateNetwork() {
+		synchronized (counts) {
+			for (VariableType var : network.getVariables()) {
+				long[] familyCounts = counts[var.ordinal()];
+				double[] probabilities = new double[familyCounts.length / 2];
+				for (int i = 0; i < probabilities.length; i++) {
+					probabilities[i] = estimate(familyCounts[i * 2],
+							familyCounts[i * 2 + 1], pseudoCount);
+				}
+				network.setConditionalProbabilities(var, probabilities);
+			}
+		}
+	}
+
+	/**
+	 * Returns the smoothed probability of true from false and true counts,
+	 * or 0.5 if there is nothing to go on.
+	 *
+	 * @param falseCount
+	 * @param trueCount
+	 * @param pseudoCount
+	 * @return
+	 */
+	static double estimate(double falseCount, double trueCount,
+			double pseudoCount) {
+		double total = falseCount + trueCount + 2 * pseudoCount;
+		return (total == 0) ? 0.5 : (trueCount + pseudoCount) / total;
+	}
+
+	/**
+	 * Counts one record into the given counts, for every family it observes
+	 * completely.
+	 */
+	private void count(long[][] target, int observed, int values) {
+		for (int v = 0; v < parents.length; v++) {
+			int[] varParents = parents[v];
+			if (varParents == null || (observed & (1 << v)) == 0) {
+				continue;
+			}
+
+			int index = 0;
+			boolean complete = true;
+			for (int parent : varParents) {
+				if ((observed & (1 << parent)) == 0) {
+					complete = false;
+					break;
+				}
+				index = (index << 1) | ((values >> parent) & 1);
+			}
+			if (complete) {
+				target[v][(index << 1) | ((values >> v) & 1)]++;
+			}
+		}
+	}
+
+	private long[][] newCounts() {
+		long[][] output = new long[counts.length][];
+		for (int v = 0; v < counts.length; v++) {
+			if (counts[v] != null) {
+				output[v] = new long[counts[v].length];
+			}
+		}
+		return output;
+	}
+
+	private void merge(long[][] local) {
+		synchronized (counts) {
+			for (int v = 0; v < counts.length; v++) {
+				if (counts[v] == null) {
+					continue;
+				}
+				for (int i = 0; i < counts[v].length; i++) {
+					counts[v][i] += local[v][i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts batches into counts of its own until it takes an end marker,
+	 * then returns them.
+	 */
+	private class BatchCounter implements Callable<long[][]> {
+
+		private final BlockingQueue<int[]> batches;
+
+		BatchCounter(BlockingQueue<int[]> batches) {
+			this.batches = batches;
+		}
+
+		public long[][] call() throws InterruptedException {
+			long[][] local = newCounts();
+			while (true) {
+				int[] batch = batches.take();
+				if (batch[0] < 0) {
+					return local;
+				}
+				for (int i = 0; i < batch[0]; i++) {
+					count(local, batch[1 + i * 2], batch[2 + i * 2]);
+				}
+			}
+		}
+	}
+}
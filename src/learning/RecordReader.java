@@ -0,0 +1,124 @@
+package learning;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import util.VariableType;
+
+/**
+ * Reads observation records from CSV, one record per line after a header line
+ * naming the variable of each column. Columns that are not a variable are
+ * ignored, and a variable may only name one column.
+ *
+ * Values are true, false, T, F, 1 or 0 in any case. An empty value or ? is
+ * missing. Each record is read into two bit masks over the variable ordinals:
+ * the variables observed, and the observed variables that are true.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class RecordReader {
+
+	private final BufferedReader in;
+	private final int[] columnVars;
+	private int lineNumber;
+
+	/**
+	 * Reads the header of the CSV.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	RecordReader(Reader in) throws IOException {
+		this.in = (in instanceof BufferedReader) ? (BufferedReader) in
+				: new BufferedReader(in);
+
+		String header = this.in.readLine();
+		if (header == null) {
+			throw new IllegalArgumentException("No header line");
+		}
+		lineNumber = 1;
+
+		String[] names = header.split(",", -1);
+		columnVars = new int[names.length];
+		int seen = 0;
+		for (int i = 0; i < names.length; i++) {
+			columnVars[i] = -1;
+			for (VariableType var : VariableType.values()) {
+				if (var.name().equals(names[i].trim())) {
+					if ((seen & (1 << var.ordinal())) != 0) {
+						throw new IllegalArgumentException(var
+								+ " is named in more than one column");
+					}
+					seen |= 1 << var.ordinal();
+					columnVars[i] = var.ordinal();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the next record into the given array at the given offset, as the
+	 * mask of observed variables followed by the mask of true variables.
+	 * Returns false at the end of the input. Blank lines are skipped.
+	 *
+	 * @param record
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	boolean next(int[] record, int offset) throws IOException {
+		String line;
+		do {
+			line = in.readLine();
+			if (line == null) {
+				return false;
+			}
+			lineNumber++;
+		} while (line.trim().isEmpty());
+
+		int observed = 0;
+		int values = 0;
+		int column = 0;
+		int start = 0;
+		while (start <= line.length() && column < columnVars.length) {
+			int end = line.indexOf(',', start);
+			if (end < 0) {
+				end = line.length();
+			}
+
+			int var = columnVars[column];
+			if (var >= 0) {
+				String value = line.substring(start, end).trim();
+				if (isTrue(value)) {
+					observed |= 1 << var;
+					values |= 1 << var;
+				} else if (isFalse(value)) {
+					observed |= 1 << var;
+				} else if (!value.isEmpty() && !value.equals("?")) {
+					throw new IllegalArgumentException("Line " + lineNumber
+							+ ": unknown value " + value);
+				}
+			}
+
+			start = end + 1;
+			column++;
+		}
+
+		record[offset] = observed;
+		record[offset + 1] = values;
+		return true;
+	}
+
+	private static boolean isTrue(String value) {
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("T")
+				|| value.equals("1");
+	}
+
+	private static boolean isFalse(String value) {
+		return value.equalsIgnoreCase("false") || value.equalsIgnoreCase("F")
+				|| value.equals("0");
+	}
+}
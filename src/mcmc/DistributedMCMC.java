@@ -0,0 +1,408 @@
+package mcmc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.Factor;
+
+/**
+ * Runs MCMC chains in worker processes, merging their counts until the
+ * estimates are precise enough.
+ *
+ * The coordinator listens on a loopback port and starts each worker as a
+ * separate JVM running SamplingWorker with the class path of this one. Each
+ * worker is sent the serialised network, the evidence, the query variables
+ * and a range of seeds of its own, and reports the counts of M chains of N
+ * steps per seed. Workers only need the host and port of the coordinator, so
+ * ones on other machines could connect the same way.
+ *
+ * Every report is a batch whose estimate is its true count over its steps.
+ * Sampling stops once at least one batch per worker has arrived and the
+ * standard error of the mean of the batch estimates of every query variable
+ * is within the tolerance, or once the sample limit is reached.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class DistributedMCMC {
+
+	static final int MAGIC = 0x424e4d43; // "BNMC"
+
+	private static final long SEEDS_PER_WORKER = 1L << 32;
+	private static final int CONNECT_TIMEOUT = 60000;
+
+	private final BayesNet network;
+	private final int N, M;
+
+	private EnumMap<VariableType, Boolean> evidence;
+
+	private int workers = 2;
+	private double tolerance = 0.005;
+	private long maxSamples = Long.MAX_VALUE;
+
+	private long sampleCount;
+
+	/**
+	 * Sets up distributed MCMC for the given Bayes Net, with each report of a
+	 * worker covering M chains of N steps.
+	 *
+	 * @param network
+	 * @param N
+	 * @param M
+	 */
+	public DistributedMCMC(BayesNet network, int N, int M) {
+		this.network = network;
+		this.N = N;
+		this.M = M;
+		resetBayesNet();
+	}
+
+	/**
+	 * Sets the number of worker processes.
+	 *
+	 * @param workers
+	 */
+	public void setWorkers(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Need at least one worker");
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * Sets the standard error every estimate must be within to stop
+	 * sampling.
+	 *
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		if (tolerance < 0) {
+			throw new IllegalArgumentException("tolerance must not be negative");
+		}
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Sets the number of steps after which sampling stops whatever the
+	 * standard error.
+	 *
+	 * @param maxSamples
+	 */
+	public void setMaxSamples(long maxSamples) {
+		if (maxSamples < 1) {
+			throw new IllegalArgumentException("maxSamples must be positive");
+		}
+		this.maxSamples = maxSamples;
+	}
+
+	/**
+	 * Returns the number of steps merged by the last query.
+	 *
+	 * @return
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Set a variable type to observed.
+	 *
+	 * @param var
+	 * @param observedValue
+	 */
+	public void setEvidenceObservation(VariableType var, boolean observedValue) {
+		evidence.put(var, observedValue);
+	}
+
+	/**
+	 * Removes all evidence observations.
+	 */
+	public void resetBayesNet() {
+		evidence = new EnumMap<VariableType, Boolean>(VariableType.class);
+	}
+
+	/**
+	 * Returns the estimated probability of a true assignment to the query
+	 * variable given the evidence.
+	 *
+	 * @param var
+	 * @return
+	 * @throws IOException
+	 */
+	public double computeQuery(VariableType var) throws IOException {
+		return computeMarginals(var).get(var).getProbability(true);
+	}
+
+	/**
+	 * Returns the estimated distribution of each of the query variables given
+	 * the evidence from one set of workers, as a Factor over that variable
+	 * whose values sum to 1.
+	 *
+	 * @param queryVariables
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<VariableType, Factor> computeMarginals(
+			VariableType... queryVariables) throws IOException {
+		EnumMap<VariableType, Factor> marginals = new EnumMap<VariableType, Factor>(
+				VariableType.class);
+		EnumSet<VariableType> sampled = EnumSet.noneOf(VariableType.class);
+		for (VariableType var : queryVariables) {
+			if (evidence.containsKey(var)) {
+				marginals.put(var, createMarginal(var,
+						evidence.get(var) ? 1 : 0));
+			} else {
+				sampled.add(var);
+			}
+		}
+		sampleCount = 0;
+		if (sampled.isEmpty()) {
+			return marginals;
+		}
+
+		Merger merger = run(sampled);
+		int i = 0;
+		for (VariableType var : sampled) {
+			marginals.put(var, createMarginal(var, merger.trueCounts[i++]
+					/ merger.steps));
+		}
+		sampleCount = merger.steps;
+		return marginals;
+	}
+
+	private static Factor createMarginal(VariableType var, double trueProb) {
+		return new Factor(new double[] { 1 - trueProb, trueProb }, var);
+	}
+
+	/**
+	 * Starts the workers, merges their reports until sampling can stop, then
+	 * shuts them down.
+	 *
+	 * @param sampled
+	 * @return
+	 * @throws IOException
+	 */
+	private Merger run(EnumSet<VariableType> sampled) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, workers,
+				InetAddress.getLoopbackAddress());
+		List<Process> processes = new ArrayList<Process>();
+		List<Socket> sockets = new ArrayList<Socket>();
+		Merger merger = new Merger(sampled.size(), workers);
+		try {
+			String java = System.getProperty("java.home") + File.separator
+					+ "bin" + File.separator + "java";
+			for (int w = 0; w < workers; w++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+						System.getProperty("java.class.path"),
+						SamplingWorker.class.getName(), "127.0.0.1",
+						Integer.toString(serverSocket.getLocalPort()));
+				builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				processes.add(builder.start());
+			}
+
+			serverSocket.setSoTimeout(CONNECT_TIMEOUT);
+			for (int w = 0; w < workers; w++) {
+				Socket socket = serverSocket.accept();
+				sockets.add(socket);
+				sendJob(socket, sampled, w * SEEDS_PER_WORKER,
+						(w + 1) * SEEDS_PER_WORKER);
+				Thread reader = new Thread(new ReportReader(socket, w, merger));
+				reader.setDaemon(true);
+				reader.start();
+			}
+
+			merger.awaitStop(workers);
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			serverSocket.close();
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+
+		if (merger.steps == 0) {
+			throw new IOException("No worker reported any samples");
+		}
+		return merger;
+	}
+
+	/**
+	 * Sends a worker its job.
+	 */
+	private void sendJob(Socket socket, EnumSet<VariableType> sampled,
+			long firstSeed, long lastSeed) throws IOException {
+		int observed = 0;
+		int values = 0;
+		for (Map.Entry<VariableType, Boolean> entry : evidence.entrySet()) {
+			observed |= 1 << entry.getKey().ordinal();
+			if (entry.getValue()) {
+				values |= 1 << entry.getKey().ordinal();
+			}
+		}
+		int queryMask = 0;
+		for (VariableType var : sampled) {
+			queryMask |= 1 << var.ordinal();
+		}
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+		data.writeInt(MAGIC);
+		network.writeTo(data);
+		data.writeInt(observed);
+		data.writeInt(values);
+		data.writeInt(queryMask);
+		data.writeInt(N);
+		data.writeInt(M);
+		data.writeLong(firstSeed);
+		data.writeLong(lastSeed);
+		data.flush();
+	}
+
+	/**
+	 * Merges the reports of every worker and decides when to stop.
+	 */
+	private class Merger {
+
+		final double[] trueCounts;
+		long steps;
+
+		// The number of batches, and the sums of their estimates and of the
+		// squares of their estimates, for each query variable.
+		private long batches;
+		private final double[] sums;
+		private final double[] sumsOfSquares;
+
+		// Which workers have reported a batch, and how many.
+		private final boolean[] reported;
+		private int reportedWorkers;
+
+		private int finishedWorkers;
+		private boolean stop;
+
+		Merger(int numQueries, int numWorkers) {
+			trueCounts = new double[numQueries];
+			sums = new double[numQueries];
+			sumsOfSquares = new double[numQueries];
+			reported = new boolean[numWorkers];
+		}
+
+		synchronized void add(int worker, long batchSteps,
+				double[] batchCounts) {
+			if (stop) {
+				return;
+			}
+			if (!reported[worker]) {
+				reported[worker] = true;
+				reportedWorkers++;
+			}
+			steps += batchSteps;
+			batches++;
+			for (int i = 0; i < trueCounts.length; i++) {
+				trueCounts[i] += batchCounts[i];
+				double estimate = batchCounts[i] / batchSteps;
+				sums[i] += estimate;
+				sumsOfSquares[i] += estimate * estimate;
+			}
+
+			if (steps >= maxSamples
+					|| (reportedWorkers == reported.length && converged())) {
+				stop = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Returns whether the standard error of the mean batch estimate of
+		 * every query variable is within the tolerance.
+		 *
+		 * @return
+		 */
+		private boolean converged() {
+			if (batches < 2) {
+				return false;
+			}
+			for (int i = 0; i < sums.length; i++) {
+				double mean = sums[i] / batches;
+				double variance = (sumsOfSquares[i] - batches * mean * mean)
+						/ (batches - 1);
+				if (Math.sqrt(Math.max(variance, 0) / batches) > tolerance) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized void workerFinished() {
+			finishedWorkers++;
+			notifyAll();
+		}
+
+		synchronized void awaitStop(int numWorkers) throws IOException {
+			while (!stop && finishedWorkers < numWorkers) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while sampling", e);
+				}
+			}
+			stop = true;
+		}
+	}
+
+	/**
+	 * Reads the reports of one worker into the merger.
+	 */
+	private static class ReportReader implements Runnable {
+
+		private final Socket socket;
+		private final int worker;
+		private final Merger merger;
+
+		ReportReader(Socket socket, int worker, Merger merger) {
+			this.socket = socket;
+			this.worker = worker;
+			this.merger = merger;
+		}
+
+		public void run() {
+			try {
+				DataInputStream data = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream()));
+				double[] counts = new double[merger.trueCounts.length];
+				while (true) {
+					long steps = data.readLong();
+					if (steps < 0) {
+						break;
+					}
+					for (int i = 0; i < counts.length; i++) {
+						counts[i] = data.readDouble();
+					}
+					merger.add(worker, steps, counts);
+				}
+			} catch (IOException e) {
+				// The worker died or was shut down.
+			} finally {
+				merger.workerFinished();
+			}
+		}
+	}
+}
@@ -1,9 +1,23 @@
 package mcmc;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import util.BayesNet;
+import util.InferenceEngine;
+import util.InferenceMetrics;
 import util.VariableType;
+import variableElimination.Factor;
 
 /**
  * A Bayes Net used for computing queries using the MCMC algorithm.
@@ -12,13 +26,28 @@ import util.VariableType;
  * @author Rohan Brooker
  * 
  */
-public class MCMC {
+public class MCMC implements InferenceEngine {
 
 	private LinkedHashMap<VariableType, Variable> variables;
 	private LinkedHashMap<VariableType, Variable> evidence;
 	
+	private BayesNet network;
+	private long networkVersion;
+	
 	private int N, M;
 	
+	private boolean raoBlackwellised = false;
+	
+	private double[] temperatures = { 1 };
+	private int swapInterval = 100;
+	private long swapsProposed;
+	private long swapsAccepted;
+	private ForkJoinPool pool;
+	
+	private Random random = new Random();
+	
+	private InferenceMetrics metrics;
+	
 	/**
 	 * Sets up MCMC for the specified Bayes Net for N iterations.
 	 * 
@@ -26,6 +55,18 @@ public class MCMC {
 	 * @param M
 	 */
 	public MCMC(int N, int M) {
+		this(BayesNet.createExampleBayesNet(), N, M);
+	}
+	
+	/**
+	 * Sets up MCMC for the given Bayes Net for N iterations.
+	 * 
+	 * @param network
+	 * @param N
+	 * @param M
+	 */
+	public MCMC(BayesNet network, int N, int M) {
+		this.network = network;
 		this.N = N;
 		this.M = M;
 		
@@ -50,80 +91,164 @@ public class MCMC {
 		this.M = M;
 	}
 	
+	/**
+	 * Seeds the random numbers of the chains, so the same seed gives the same
+	 * estimates for the same queries.
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		random = new Random(seed);
+	}
+	
+	/**
+	 * Estimates from the probability of true each value is sampled from,
+	 * rather than from the sampled values themselves. The estimates have the
+	 * same expectation and lower variance.
+	 */
+	public void turnOnRaoBlackwellisation() {
+		this.raoBlackwellised = true;
+	}
+	
+	/**
+	 * Estimates from the sampled values.
+	 */
+	public void turnOffRaoBlackwellisation() {
+		this.raoBlackwellised = false;
+	}
+	
+	/**
+	 * Runs a replica of each chain at each of the given temperatures, the
+	 * first of which must be 1, swapping the states of replicas at adjacent
+	 * temperatures every swap interval. Each replica samples from the
+	 * posterior with every probability raised to the power 1 / temperature,
+	 * so hotter replicas move freely between modes, and swaps carry their
+	 * states down to the replica at temperature 1, the only one estimates
+	 * are taken from. A single temperature of 1 turns replicas off.
+	 * 
+	 * A swap between replicas at inverse temperatures a and b in states x
+	 * and y is accepted with probability min(1, (P(y) / P(x))^(a - b)), which
+	 * keeps every replica sampling from its own tempered distribution.
+	 * 
+	 * @param temperatures
+	 */
+	public void setTemperatures(double... temperatures) {
+		if (temperatures.length == 0 || temperatures[0] != 1) {
+			throw new IllegalArgumentException("The first temperature must be 1");
+		}
+		for (double temperature : temperatures) {
+			if (!(temperature >= 1)) {
+				throw new IllegalArgumentException(
+						"Temperatures must be at least 1");
+			}
+		}
+		this.temperatures = temperatures.clone();
+	}
+	
+	/**
+	 * Sets the number of steps each replica takes between swaps.
+	 * 
+	 * @param steps
+	 */
+	public void setSwapInterval(int steps) {
+		if (steps < 1) {
+			throw new IllegalArgumentException("Swap interval must be positive");
+		}
+		this.swapInterval = steps;
+	}
+	
+	/**
+	 * Sets the number of threads running replicas concurrently between
+	 * swaps. A parallelism of 1 or less runs every replica on the calling
+	 * thread.
+	 * 
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+	
+	/**
+	 * Returns the fraction of the swaps proposed between replicas that were
+	 * accepted, or 0 if none were proposed.
+	 * 
+	 * @return
+	 */
+	public double getSwapAcceptanceRate() {
+		return (swapsProposed == 0) ? 0 : (double) swapsAccepted / swapsProposed;
+	}
+	
+	/**
+	 * Sets where the time taken by each query, and the number of steps, the
+	 * number of changed values and the time taken by each chain, are
+	 * reported. Null turns off reporting.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(InferenceMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
 	/**
 	 * Resets the Bayes Net to begin assigning evidence and computing queries.
 	 */
 	public void resetBayesNet() {
-		variables = new LinkedHashMap<VariableType, Variable>();
+		variables = createVariables();
 		evidence = new LinkedHashMap<VariableType, Variable>();
-		
-		// Setup the network for this specific example...
-		
-		Variable b = new Variable(VariableType.B);
-		Variable c = new Variable(VariableType.C);
-		Variable i = new Variable(VariableType.I);
-		Variable m = new Variable(VariableType.M);
-		Variable s = new Variable(VariableType.S);
-		
-		b.addParentsAndProbabilities(new Variable [] {
-				m
-		}, new double [] {
-					  // M
-				0.05, // F
-				0.20  // T
-		});
-		b.addChildren(new Variable [] {
-				c,
-				s
-		});
-		
-		c.addParentsAndProbabilities(new Variable [] {
-				b,
-				i
-		}, new double [] {
-					  // B I
-				0.05, // F F
-				0.80, // F T
-				0.80, // T F
-				0.80  // T T
-		});
-		c.addChildren(new Variable [] {});
-		
-		i.addParentsAndProbabilities(new Variable [] {
-				m
-		}, new double [] {
-					  // M
-				0.20, // F
-				0.80  // T
-		});
-		i.addChildren(new Variable [] {
-				c
-		});
-		
-		m.addParentsAndProbabilities(new Variable [] {}, new double [] {
-				0.20
-		});
-		m.addChildren(new Variable [] {
-				b,
-				i
-		});
-		
-		s.addParentsAndProbabilities(new Variable [] {
-				b
-		}, new double [] {
-					  // B
-				0.60, // F
-				0.80  // T
-		});
-		s.addChildren(new Variable [] {});
-		
+		networkVersion = network.getVersion();
+	}
+	
+	/**
+	 * Creates a variable for each variable of the network, linked up to its
+	 * parents and children.
+	 * 
+	 * @return
+	 */
+	private LinkedHashMap<VariableType, Variable> createVariables() {
+		LinkedHashMap<VariableType, Variable> output = new LinkedHashMap<VariableType, Variable>();
 		
 		// Add variable in alphabetical order.
-		variables.put(VariableType.B, b);
-		variables.put(VariableType.C, c);
-		variables.put(VariableType.I, i);
-		variables.put(VariableType.M, m);
-		variables.put(VariableType.S, s);
+		for (VariableType var : network.getVariables()) {
+			output.put(var, new Variable(var));
+		}
+		
+		// Link up the parents and children of each variable.
+		for (VariableType var : network.getVariables()) {
+			Variable v = output.get(var);
+			v.addParentsAndProbabilities(
+					getVariables(output, network.getParents(var)),
+					network.getProbabilities(var));
+			v.addChildren(getVariables(output, network.getChildren(var)));
+		}
+		return output;
+	}
+	
+	/**
+	 * Returns the variables for the given variable types.
+	 * 
+	 * @param from
+	 * @param vars
+	 * @return
+	 */
+	private static Variable[] getVariables(
+			Map<VariableType, Variable> from, VariableType[] vars) {
+		Variable[] output = new Variable[vars.length];
+		for (int i = 0; i < vars.length; i++) {
+			output[i] = from.get(vars[i]);
+		}
+		return output;
+	}
+	
+	/**
+	 * Returns the Bayes Net queries are computed against.
+	 * 
+	 * @return
+	 */
+	public BayesNet getNetwork() {
+		return network;
 	}
 	
 	/**
@@ -134,48 +259,397 @@ public class MCMC {
 	 * @return
 	 */
 	public double computeQuery(VariableType var) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+		refresh();
+		
+		double result;
 		if (variables.values().size() == 0 || evidence.containsKey(var)) {
 			// If the variable has already been observed, don't need to compute...
 			// Return 1 if the variable has been observed to be true, 0 otherwise.
-			return evidence.get(var).currentAssignment() ? 1 : 0;
+			result = evidence.get(var).currentAssignment() ? 1 : 0;
+		} else {
+			double[] trueWeights = runChains(
+					new Variable[] { variables.get(var) }, false);
+			result = trueWeights[0] / ((double) M * N);
 		}
 		
-		Iterator<Variable> iter = variables.values().iterator();
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the estimated joint distribution of the query variables given
+	 * the evidence, as a Factor over the query variables in alphabetic order
+	 * whose values sum to 1. Every step of every chain counts towards the
+	 * assignment it visits.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	public Factor computeJointQuery(VariableType... queryVariables) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+		refresh();
+		
+		EnumSet<VariableType> query = EnumSet.noneOf(VariableType.class);
+		for (VariableType var : queryVariables) {
+			if (evidence.containsKey(var)) {
+				throw new IllegalArgumentException(var + " is observed");
+			}
+			query.add(var);
+		}
+		VariableType[] vars = query.toArray(new VariableType[query.size()]);
 		
-		double sum = 0;
+		double[] counts = runChains(getVariables(variables, vars), true);
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] /= (double) M * N;
+		}
 		
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+		return new Factor(counts, vars);
+	}
+	
+	/**
+	 * Returns the estimated distribution of each of the query variables given
+	 * the evidence from one set of chains, as a Factor over that variable
+	 * whose values sum to 1.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	public Map<VariableType, Factor> computeMarginals(
+			VariableType... queryVariables) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+		refresh();
+		
+		Variable[] tracked = new Variable[queryVariables.length];
+		for (int i = 0; i < tracked.length; i++) {
+			tracked[i] = evidence.containsKey(queryVariables[i]) ? evidence
+					.get(queryVariables[i]) : variables.get(queryVariables[i]);
+		}
+		double[] trueCounts = runChains(tracked, false);
+		
+		EnumMap<VariableType, Factor> marginals = new EnumMap<VariableType, Factor>(
+				VariableType.class);
+		for (int i = 0; i < tracked.length; i++) {
+			double trueProb = trueCounts[i] / ((double) M * N);
+			if (evidence.containsKey(queryVariables[i])) {
+				trueProb = tracked[i].currentAssignment() ? 1 : 0;
+			}
+			marginals.put(queryVariables[i], new Factor(new double[] {
+					1 - trueProb, trueProb }, queryVariables[i]));
+		}
+		
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+		return marginals;
+	}
+	
+	/**
+	 * Runs M chains of N steps, returning the number of steps each of the
+	 * given unobserved variables was true, or its Rao-Blackwellised weight.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	double[] countTrueSteps(VariableType... queryVariables) {
+		refresh();
+		
+		Variable[] tracked = new Variable[queryVariables.length];
+		for (int i = 0; i < tracked.length; i++) {
+			if (evidence.containsKey(queryVariables[i])) {
+				throw new IllegalArgumentException(queryVariables[i]
+						+ " is observed");
+			}
+			tracked[i] = variables.get(queryVariables[i]);
+		}
+		return runChains(tracked, false);
+	}
+	
+	/**
+	 * Rebuilds the variables if the tables changed since they were built, and
+	 * observes the evidence again.
+	 */
+	private void refresh() {
+		if (network.getVersion() != networkVersion) {
+			LinkedHashMap<VariableType, Variable> observed = evidence;
+			resetBayesNet();
+			for (Variable v : observed.values()) {
+				setEvidenceObservation(v.getType(), v.currentAssignment());
+			}
+		}
+	}
+	
+	/**
+	 * Runs M chains of N steps, counting the assignments of the tracked
+	 * variables after every step. For a joint count the first tracked variable
+	 * is the most significant bit of the index of each count, otherwise each
+	 * tracked variable counts the steps it was true.
+	 * 
+	 * A variable keeps its value between the steps that set it, so steps
+	 * counted true are added up by each variable as it is set rather than by
+	 * every variable after every step. With Rao-Blackwellisation each step
+	 * counts the probability of true the value was sampled from instead.
+	 * 
+	 * @param tracked
+	 * @param joint
+	 * @return
+	 */
+	private double[] runChains(Variable[] tracked, boolean joint) {
+		double[] counts = new double[joint ? 1 << tracked.length
+				: tracked.length];
+		if (variables.isEmpty()) {
+			return counts;
+		}
+		if (temperatures.length > 1) {
+			return runTemperedChains(tracked, joint, counts);
+		}
+		
+		Iterator<Variable> iter = variables.values().iterator();
 		for (int i = 0; i < M; i++) {
+			long startTime = (metrics == null) ? 0 : System.nanoTime();
+			long changes = 0;
+			
 			randomiseVariableAssignments();
+			for (Variable t : tracked) {
+				t.resetTrueWeight();
+			}
 			for (int j = 0; j < N; j++) {
 				if (!iter.hasNext()) {
 					iter = variables.values().iterator();
 				}
 				Variable v = iter.next();
-				v.setAssignment(Math.random() < v.getProbabilityGivenMB());
-				incrementTrueCounters();
+				double trueProb = v.getProbabilityGivenMB();
+				boolean assignment = random.nextDouble() < trueProb;
+				if (assignment != v.currentAssignment()) {
+					changes++;
+				}
+				v.setAssignment(assignment, raoBlackwellised ? trueProb
+						: assignment ? 1 : 0, j);
+				
+				if (joint) {
+					int index = 0;
+					for (Variable t : tracked) {
+						index = (index << 1) | (t.currentAssignment() ? 1 : 0);
+					}
+					counts[index]++;
+				}
+			}
+			if (!joint) {
+				for (int k = 0; k < tracked.length; k++) {
+					counts[k] += tracked[k].getTrueWeight(N);
+				}
+			}
+			
+			if (metrics != null) {
+				metrics.chainCompleted(N, changes, System.nanoTime() - startTime);
 			}
-			sum += variables.get(var).getTrueCount();
-			resetTrueCounters();
 		}
-
-		return sum / (M * N);
+		return counts;
 	}
 	
 	/**
-	 * Increment the trueCounters in each non-evidence variable if they are currently true.
+	 * Runs M sets of replicas for N steps each, counting into the given counts
+	 * from the replica at temperature 1 as runChains does.
+	 * 
+	 * @param tracked
+	 * @param joint
+	 * @param counts
+	 * @return
 	 */
-	private void incrementTrueCounters() {
-		for (Variable v : variables.values()) {
-			v.incrementTrueCount();
+	private double[] runTemperedChains(Variable[] tracked, boolean joint,
+			double[] counts) {
+		List<Replica> replicas = new ArrayList<Replica>();
+		replicas.add(new Replica(variables, evidence, 1));
+		for (int r = 1; r < temperatures.length; r++) {
+			LinkedHashMap<VariableType, Variable> copy = createVariables();
+			LinkedHashMap<VariableType, Variable> copyEvidence = new LinkedHashMap<VariableType, Variable>();
+			for (Variable v : evidence.values()) {
+				Variable observed = copy.remove(v.getType());
+				observed.setAssignment(v.currentAssignment());
+				copyEvidence.put(v.getType(), observed);
+			}
+			replicas.add(new Replica(copy, copyEvidence, 1 / temperatures[r]));
+		}
+		
+		for (int i = 0; i < M; i++) {
+			long startTime = (metrics == null) ? 0 : System.nanoTime();
+			
+			for (Replica replica : replicas) {
+				replica.randomise();
+			}
+			for (Variable t : tracked) {
+				t.resetTrueWeight();
+			}
+			replicas.get(0).setTracked(tracked, joint ? counts : null);
+			
+			int round = 0;
+			for (int from = 0; from < N; from += swapInterval) {
+				int to = (int) Math.min(N, (long) from + swapInterval);
+				for (Replica replica : replicas) {
+					replica.setSteps(from, to);
+				}
+				advance(replicas);
+				swap(replicas, to, round++ % 2);
+			}
+			
+			if (!joint) {
+				for (int k = 0; k < tracked.length; k++) {
+					counts[k] += tracked[k].getTrueWeight(N);
+				}
+			}
+			if (metrics != null) {
+				metrics.chainCompleted(N, replicas.get(0).changes,
+						System.nanoTime() - startTime);
+			}
 		}
+		return counts;
 	}
 	
 	/**
-	 * Resets all the true counts for each non-evidence variable.
+	 * Runs every replica to the end of its steps, concurrently if there is a
+	 * pool.
+	 * 
+	 * @param replicas
 	 */
-	private void resetTrueCounters() {
-		for (Variable v : variables.values()) {
-			v.resetTrueCount();
+	private void advance(List<Replica> replicas) {
+		if (pool == null) {
+			for (Replica replica : replicas) {
+				replica.call();
+			}
+			return;
+		}
+		
+		for (Future<Void> future : pool.invokeAll(replicas)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Proposes a swap between each pair of replicas at adjacent temperatures,
+	 * starting from the first or second replica, at the given step.
+	 * 
+	 * @param replicas
+	 * @param step
+	 * @param first
+	 */
+	private void swap(List<Replica> replicas, int step, int first) {
+		for (int r = first; r + 1 < replicas.size(); r += 2) {
+			Replica a = replicas.get(r);
+			Replica b = replicas.get(r + 1);
+			double logAccept = (a.beta - b.beta)
+					* (b.getLogProbability() - a.getLogProbability());
+			
+			swapsProposed++;
+			if (logAccept >= 0 || Math.log(random.nextDouble()) < logAccept) {
+				swapsAccepted++;
+				for (int k = 0; k < a.sampled.length; k++) {
+					boolean aValue = a.sampled[k].currentAssignment();
+					boolean bValue = b.sampled[k].currentAssignment();
+					a.sampled[k].setAssignment(bValue, bValue ? 1 : 0, step);
+					b.sampled[k].setAssignment(aValue, aValue ? 1 : 0, step);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A copy of the variables sampled at one inverse temperature, with its
+	 * own random numbers so replicas can run on separate threads.
+	 */
+	private class Replica implements Callable<Void> {
+		
+		final Variable[] sampled;
+		final Variable[] all;
+		final double beta;
+		final Random random = new Random(MCMC.this.random.nextLong());
+		
+		private int position;
+		private int from, to;
+		private Variable[] tracked;
+		private double[] jointCounts;
+		long changes;
+		
+		Replica(LinkedHashMap<VariableType, Variable> sampled,
+				LinkedHashMap<VariableType, Variable> observed, double beta) {
+			this.sampled = sampled.values().toArray(
+					new Variable[sampled.size()]);
+			this.all = new Variable[sampled.size() + observed.size()];
+			int i = 0;
+			for (Variable v : sampled.values()) {
+				all[i++] = v;
+			}
+			for (Variable v : observed.values()) {
+				all[i++] = v;
+			}
+			this.beta = beta;
+		}
+		
+		void randomise() {
+			for (Variable v : sampled) {
+				v.setCurrentAssignment(random.nextBoolean());
+			}
+			changes = 0;
+		}
+		
+		void setTracked(Variable[] tracked, double[] jointCounts) {
+			this.tracked = tracked;
+			this.jointCounts = jointCounts;
+		}
+		
+		void setSteps(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * Returns the log of the probability of the current state of every
+		 * variable, evidence included.
+		 * 
+		 * @return
+		 */
+		double getLogProbability() {
+			double sum = 0;
+			for (Variable v : all) {
+				sum += v.getLogProbabilityGivenParents();
+			}
+			return sum;
+		}
+		
+		public Void call() {
+			for (int j = from; j < to; j++) {
+				if (position == sampled.length) {
+					position = 0;
+				}
+				Variable v = sampled[position++];
+				double trueProb = v.getProbabilityGivenMB(beta);
+				boolean assignment = random.nextDouble() < trueProb;
+				if (assignment != v.currentAssignment()) {
+					changes++;
+				}
+				v.setAssignment(assignment, raoBlackwellised ? trueProb
+						: assignment ? 1 : 0, j);
+				
+				if (jointCounts != null) {
+					int index = 0;
+					for (Variable t : tracked) {
+						index = (index << 1) | (t.currentAssignment() ? 1 : 0);
+					}
+					jointCounts[index]++;
+				}
+			}
+			return null;
 		}
 	}
 	
@@ -184,7 +658,7 @@ public class MCMC {
 	 */
 	private void randomiseVariableAssignments() {
 		for (Variable v : variables.values()) {
-			v.setCurrentAssignment((Math.random() < 0.5) ? true : false);
+			v.setCurrentAssignment(random.nextBoolean());
 		}
 	}
 	
@@ -0,0 +1,108 @@
+package mcmc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * A worker process for DistributedMCMC. It connects to the coordinator, reads
+ * the network, evidence, query and range of seeds of its job, and runs M
+ * chains of N steps for each seed in turn, sending the counts of each seed
+ * back as it goes. It stops when the seeds run out or the coordinator hangs
+ * up.
+ *
+ * Run as: java mcmc.SamplingWorker host port
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class SamplingWorker {
+
+	/**
+	 * Connects to the coordinator at the given host and port and runs the
+	 * job it sends.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java mcmc.SamplingWorker host port");
+			System.exit(1);
+		}
+
+		Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
+		try {
+			run(socket.getInputStream(), socket.getOutputStream());
+		} catch (SocketException e) {
+			// The coordinator has all it needs.
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reads a job from the given input and writes its counts to the given
+	 * output.
+	 *
+	 * Each report is the number of steps run followed by the number of steps
+	 * each query variable was true, in alphabetic order. A report of -1 steps
+	 * ends the counts.
+	 *
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	static void run(InputStream in, OutputStream out) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		DataOutputStream reports = new DataOutputStream(
+				new BufferedOutputStream(out));
+		if (data.readInt() != DistributedMCMC.MAGIC) {
+			throw new IOException("Not a sampling job");
+		}
+
+		BayesNet network = BayesNet.readFrom(data);
+		int observed = data.readInt();
+		int values = data.readInt();
+		int queryMask = data.readInt();
+		int N = data.readInt();
+		int M = data.readInt();
+		long firstSeed = data.readLong();
+		long lastSeed = data.readLong();
+
+		MCMC mc = new MCMC(network, N, M);
+		VariableType[] query = new VariableType[Integer.bitCount(queryMask)];
+		int q = 0;
+		for (VariableType var : VariableType.values()) {
+			int bit = 1 << var.ordinal();
+			if ((observed & bit) != 0) {
+				mc.setEvidenceObservation(var, (values & bit) != 0);
+			}
+			if ((queryMask & bit) != 0) {
+				query[q++] = var;
+			}
+		}
+
+		for (long seed = firstSeed; seed < lastSeed; seed++) {
+			mc.setSeed(seed);
+			double[] counts = mc.countTrueSteps(query);
+			reports.writeLong((long) M * N);
+			for (double count : counts) {
+				reports.writeDouble(count);
+			}
+			reports.flush();
+		}
+		reports.writeLong(-1);
+		reports.flush();
+	}
+}
@@ -21,7 +21,11 @@ public class Variable {
 
 	private boolean currentAssignment;
 
-	private int trueCount;
+	// The weight of steps counted as true so far, and the value counted for
+	// each step since the variable was last set.
+	private double trueWeight;
+	private double heldValue;
+	private long heldSince;
 
 	/**
 	 * Construct a random variable. Assumes variables are always ordered
@@ -32,7 +36,6 @@ public class Variable {
 	public Variable(VariableType var) {
 		this.var = var;
 		this.currentAssignment = (Math.random() < 0.5) ? true : false;
-		this.trueCount = 0;
 
 		this.parents = new Variable[0];
 		this.probabilities = new double[0];
@@ -60,6 +63,15 @@ public class Variable {
 		this.children = children;
 	}
 
+	/**
+	 * Returns the variable type of this variable.
+	 * 
+	 * @return
+	 */
+	public VariableType getType() {
+		return this.var;
+	}
+
 	/**
 	 * 
 	 * @param assignment
@@ -90,6 +102,19 @@ public class Variable {
 	 * @return
 	 */
 	public double getProbabilityGivenMB() {
+		return getProbabilityGivenMB(1);
+	}
+
+	/**
+	 * Returns the true probability of this variable given the current state of
+	 * its Markov Blanket, at the given inverse temperature: the probabilities
+	 * of true and false are each raised to the power beta before they are
+	 * normalised, flattening the distribution for beta below 1.
+	 * 
+	 * @param beta
+	 * @return
+	 */
+	public double getProbabilityGivenMB(double beta) {
 		double trueOutput = getProbabilityGivenParents();
 		double falseOutput = 1 - trueOutput;
 
@@ -111,9 +136,25 @@ public class Variable {
 		}
 		currentAssignment = temp;
 
+		if (beta != 1) {
+			trueOutput = Math.pow(trueOutput, beta);
+			falseOutput = Math.pow(falseOutput, beta);
+		}
+
 		// Return the normalised true prob.
 		return trueOutput / (trueOutput + falseOutput);
 	}
+
+	/**
+	 * Returns the log of the probability of the current assignment of this
+	 * variable given the current state of its parents.
+	 * 
+	 * @return
+	 */
+	public double getLogProbabilityGivenParents() {
+		double prob = getProbabilityGivenParents();
+		return Math.log(currentAssignment ? prob : 1 - prob);
+	}
 	
 	/**
 	 * Sets the current assignment.
@@ -134,30 +175,44 @@ public class Variable {
 	}
 	
 	/**
-	 * Increments the true count if the current assignment is true.
+	 * Sets the current assignment at the given step of a chain, counting the
+	 * steps since the variable was last set towards its true weight. From
+	 * this step on, each step counts trueValue towards the true weight: 1 or
+	 * 0 for the assignment itself, or the probability of true it was sampled
+	 * from.
+	 * 
+	 * @param assignment
+	 * @param trueValue
+	 * @param step
 	 */
-	public void incrementTrueCount() {
-		if (currentAssignment) {
-			trueCount++;
-		}
+	public void setAssignment(boolean assignment, double trueValue, long step) {
+		this.currentAssignment = assignment;
+		trueWeight += heldValue * (step - heldSince);
+		heldValue = trueValue;
+		heldSince = step;
 	}
 	
 	/**
-	 * Resets the true count to zero.
+	 * Resets the true weight to zero at the start of a chain, counting the
+	 * current assignment from there.
 	 */
-	public void resetTrueCount() {
-		this.trueCount = 0;
+	public void resetTrueWeight() {
+		trueWeight = 0;
+		heldValue = currentAssignment ? 1 : 0;
+		heldSince = 0;
 	}
 	
 	/**
-	 * Gets the true count.
+	 * Gets the weight of the steps before the given step of a chain counted
+	 * as true.
 	 * 
+	 * @param step
 	 * @return
 	 */
-	public int getTrueCount() {
-		return this.trueCount;
+	public double getTrueWeight(long step) {
+		return trueWeight + heldValue * (step - heldSince);
 	}
-
+	
 	/**
 	 * That is some super awesome bitwise code.
 	 * 
@@ -0,0 +1,429 @@
+package recursiveConditioning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import util.BayesNet;
+import util.InferenceEngine;
+import util.VariableType;
+import variableElimination.Factor;
+
+/**
+ * A Bayes Net used for computing queries by recursive conditioning, trading
+ * time for memory within a cache budget.
+ *
+ * The tables are arranged in a decomposition tree built from an elimination
+ * ordering, each leaf holding one table. At each inner node the variables its
+ * two subtrees share, less those already assigned above, form its cutset.
+ * Assigning the cutset splits the node into independent subtrees, so the
+ * probability of the evidence is the sum over the cutset assignments of the
+ * product of what the subtrees return. A leaf sums its table over whatever
+ * variables are still unassigned.
+ *
+ * What a node returns depends only on the assignment to its context, the
+ * variables of the node assigned above it, so it can be cached by context.
+ * Caches are given to nodes in order of their size until the cache budget,
+ * in cells, runs out. No budget runs in space linear in the network with
+ * time exponential in the depth of the cutsets, and a budget covering every
+ * cache runs in time and space exponential in the width of the ordering, as
+ * VE does.
+ *
+ * Evidence is kept across queries until the network is reset.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class RecursiveConditioning implements InferenceEngine {
+
+	private BayesNet network;
+	private VariableType[] eliminationOrdering;
+
+	private EnumMap<VariableType, Boolean> evidence;
+
+	private long cacheBudget = Long.MAX_VALUE;
+
+	private Node root;
+	private List<Node> cachedNodes;
+	private long treeVersion = -1;
+
+	// The current assignment, as masks over the variable ordinals of the
+	// variables assigned and those assigned true.
+	private int assigned;
+	private int values;
+
+	private long callCount;
+
+	/**
+	 * Sets up recursive conditioning for the example Bayes Net with the
+	 * given elimination ordering.
+	 *
+	 * @param eliminationOrder
+	 */
+	public RecursiveConditioning(VariableType... eliminationOrder) {
+		this(BayesNet.createExampleBayesNet(), eliminationOrder);
+	}
+
+	/**
+	 * Sets up recursive conditioning for the given Bayes Net, building the
+	 * decomposition tree from the given elimination ordering. Variables of
+	 * the network missing from the ordering are eliminated last, in alphabetic
+	 * order.
+	 *
+	 * @param network
+	 * @param eliminationOrder
+	 */
+	public RecursiveConditioning(BayesNet network,
+			VariableType... eliminationOrder) {
+		this.network = network;
+		this.eliminationOrdering = eliminationOrder;
+		resetBayesNet();
+	}
+
+	/**
+	 * Removes all evidence observations.
+	 */
+	public void resetBayesNet() {
+		evidence = new EnumMap<VariableType, Boolean>(VariableType.class);
+	}
+
+	/**
+	 * Returns the Bayes Net queries are computed against.
+	 *
+	 * @return
+	 */
+	public BayesNet getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Sets the largest number of cells of all the caches together. 0 caches
+	 * nothing.
+	 *
+	 * @param cells
+	 */
+	public void setCacheBudget(long cells) {
+		if (cells < 0) {
+			throw new IllegalArgumentException("Cache budget must not be negative");
+		}
+		this.cacheBudget = cells;
+		treeVersion = -1;
+	}
+
+	/**
+	 * Returns the number of cache cells in use under the current budget.
+	 *
+	 * @return
+	 */
+	public long getCacheSize() {
+		refresh();
+		long cells = 0;
+		for (Node node : cachedNodes) {
+			cells += node.cache.length;
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns the number of recursive calls made by the last query.
+	 *
+	 * @return
+	 */
+	public long getCallCount() {
+		return callCount;
+	}
+
+	/**
+	 * Set a variable type to observed.
+	 *
+	 * @param var
+	 * @param observedValue
+	 */
+	public void setEvidenceObservation(VariableType var, boolean observedValue) {
+		evidence.put(var, observedValue);
+	}
+
+	/**
+	 * Returns the probability of a true assignment to the query variable
+	 * given the evidence.
+	 *
+	 * @param queryVariable
+	 * @return
+	 */
+	public double computeQuery(VariableType queryVariable) {
+		if (evidence.containsKey(queryVariable)) {
+			return evidence.get(queryVariable) ? 1 : 0;
+		}
+		refresh();
+		callCount = 0;
+
+		int bit = 1 << queryVariable.ordinal();
+		double trueVal = computeProbabilityOfEvidence(bit, bit);
+		double falseVal = computeProbabilityOfEvidence(bit, 0);
+		return trueVal / (trueVal + falseVal);
+	}
+
+	/**
+	 * Returns the probability of the evidence.
+	 *
+	 * @return
+	 */
+	public double computeProbabilityOfEvidence() {
+		refresh();
+		callCount = 0;
+		return computeProbabilityOfEvidence(0, 0);
+	}
+
+	/**
+	 * Returns the probability of the evidence together with the given extra
+	 * assignment.
+	 *
+	 * @param extraAssigned
+	 * @param extraValues
+	 * @return
+	 */
+	private double computeProbabilityOfEvidence(int extraAssigned,
+			int extraValues) {
+		assigned = extraAssigned;
+		values = extraValues;
+		for (Map.Entry<VariableType, Boolean> entry : evidence.entrySet()) {
+			assigned |= 1 << entry.getKey().ordinal();
+			if (entry.getValue()) {
+				values |= 1 << entry.getKey().ordinal();
+			}
+		}
+
+		// Cached values hold for one assignment to the variables outside
+		// their contexts, so they don't outlive it.
+		for (Node node : cachedNodes) {
+			Arrays.fill(node.cache, Double.NaN);
+		}
+		return recondition(root);
+	}
+
+	/**
+	 * Returns the sum over the unassigned variables of the product of the
+	 * tables under the given node, for the current assignment.
+	 *
+	 * @param node
+	 * @return
+	 */
+	private double recondition(Node node) {
+		callCount++;
+		if (node.table != null) {
+			return sumLeaf(node);
+		}
+
+		int key = 0;
+		if (node.cache != null) {
+			for (int var : node.context) {
+				key = (key << 1) | ((values >> var) & 1);
+			}
+			double cached = node.cache[key];
+			if (!Double.isNaN(cached)) {
+				return cached;
+			}
+		}
+
+		// Assign whichever cutset variables aren't assigned already.
+		int free = node.cutset & ~assigned;
+		int savedValues = values;
+		assigned |= free;
+		double sum = 0;
+		int subset = 0;
+		do {
+			values = (savedValues & ~free) | subset;
+			double left = recondition(node.left);
+			if (left != 0) {
+				sum += left * recondition(node.right);
+			}
+			subset = (subset - free) & free;
+		} while (subset != 0);
+		assigned &= ~free;
+		values = savedValues;
+
+		if (node.cache != null) {
+			node.cache[key] = sum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Sums the table of a leaf over the cells consistent with the current
+	 * assignment.
+	 *
+	 * @param node
+	 * @return
+	 */
+	private double sumLeaf(Node node) {
+		int fixedBits = 0;
+		int fixedValues = 0;
+		for (int k = 0; k < node.tableVars.length; k++) {
+			int var = node.tableVars[k];
+			if ((assigned & (1 << var)) != 0) {
+				fixedBits |= 1 << k;
+				if ((values & (1 << var)) != 0) {
+					fixedValues |= 1 << k;
+				}
+			}
+		}
+
+		double[] table = node.table;
+		if (fixedBits == table.length - 1) {
+			return table[fixedValues];
+		}
+		double sum = 0;
+		for (int c = 0; c < table.length; c++) {
+			if ((c & fixedBits) == fixedValues) {
+				sum += table[c];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Rebuilds the decomposition tree and its caches if the network changed
+	 * since they were built.
+	 */
+	private void refresh() {
+		if (root != null && network.getVersion() == treeVersion) {
+			return;
+		}
+		treeVersion = network.getVersion();
+
+		List<VariableType> ordering = new ArrayList<VariableType>();
+		for (VariableType var : eliminationOrdering) {
+			if (network.getVariables().contains(var) && !ordering.contains(var)) {
+				ordering.add(var);
+			}
+		}
+		for (VariableType var : network.getVariables()) {
+			if (!ordering.contains(var)) {
+				ordering.add(var);
+			}
+		}
+
+		// Eliminating a variable joins every tree it appears in.
+		List<Node> trees = new ArrayList<Node>();
+		for (VariableType var : network.getVariables()) {
+			trees.add(new Node(Factor.createConditionalFactor(var,
+					network.getParents(var), network.getProbabilities(var))));
+		}
+		for (VariableType var : ordering) {
+			Node joined = null;
+			for (int i = 0; i < trees.size();) {
+				if ((trees.get(i).vars & (1 << var.ordinal())) != 0) {
+					Node tree = trees.remove(i);
+					joined = (joined == null) ? tree : new Node(joined, tree);
+				} else {
+					i++;
+				}
+			}
+			if (joined != null) {
+				trees.add(joined);
+			}
+		}
+		root = trees.get(0);
+		for (int i = 1; i < trees.size(); i++) {
+			root = new Node(root, trees.get(i));
+		}
+
+		List<Node> inner = new ArrayList<Node>();
+		assignCutsets(root, 0, inner);
+
+		// Smallest caches first, as they save the most calls per cell.
+		Collections.sort(inner, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return a.context.length - b.context.length;
+			}
+		});
+		cachedNodes = new ArrayList<Node>();
+		long remaining = cacheBudget;
+		for (Node node : inner) {
+			long cells = 1L << node.context.length;
+			if (node.context.length < 31 && cells <= remaining) {
+				node.cache = new double[(int) cells];
+				cachedNodes.add(node);
+				remaining -= cells;
+			}
+		}
+	}
+
+	/**
+	 * Sets the cutset and context of every inner node under the given node,
+	 * whose ancestors have assigned the given variables, collecting the inner
+	 * nodes.
+	 *
+	 * @param node
+	 * @param acutset
+	 * @param inner
+	 */
+	private void assignCutsets(Node node, int acutset, List<Node> inner) {
+		if (node.table != null) {
+			return;
+		}
+		node.cutset = (node.left.vars & node.right.vars) & ~acutset;
+		node.context = toOrdinals(node.vars & acutset);
+		node.cache = null;
+		inner.add(node);
+		assignCutsets(node.left, acutset | node.cutset, inner);
+		assignCutsets(node.right, acutset | node.cutset, inner);
+	}
+
+	private static int[] toOrdinals(int mask) {
+		int[] output = new int[Integer.bitCount(mask)];
+		for (int i = 0, var = 0; mask >> var != 0; var++) {
+			if ((mask & (1 << var)) != 0) {
+				output[i++] = var;
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * A node of the decomposition tree: either a leaf holding a table, or an
+	 * inner node joining two subtrees.
+	 */
+	private static class Node {
+		final int vars;
+
+		// Leaves: the values of the table, and the ordinal of the variable of
+		// each bit of its cell indices.
+		final double[] table;
+		final int[] tableVars;
+
+		// Inner nodes.
+		final Node left;
+		final Node right;
+		int cutset;
+		int[] context;
+		double[] cache;
+
+		Node(Factor factor) {
+			VariableType[] factorVars = factor.getVariables();
+			tableVars = new int[factorVars.length];
+			int mask = 0;
+			for (int k = 0; k < factorVars.length; k++) {
+				tableVars[k] = factorVars[k].ordinal();
+				mask |= 1 << tableVars[k];
+			}
+			vars = mask;
+			table = factor.getValues();
+			left = null;
+			right = null;
+		}
+
+		Node(Node left, Node right) {
+			vars = left.vars | right.vars;
+			table = null;
+			tableVars = null;
+			this.left = left;
+			this.right = right;
+		}
+	}
+}
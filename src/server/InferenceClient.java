@@ -0,0 +1,109 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+
+import util.VariableType;
+
+/**
+ * A connection to an InferenceServer, sending one request at a time and
+ * waiting for its response. Not thread safe; each thread needs its own.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class InferenceClient implements Closeable {
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private int nextId;
+
+	/**
+	 * Connects to the server on the given host and port.
+	 *
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 */
+	public InferenceClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+	}
+
+	/**
+	 * Returns the probability of the evidence followed by the probability of
+	 * a true assignment to each query variable given the evidence, in the
+	 * order given. Throws an IllegalStateException if the server is too busy
+	 * to answer.
+	 *
+	 * @param evidence
+	 * @param queryVariables
+	 * @return
+	 * @throws IOException
+	 */
+	public double[] query(Map<VariableType, Boolean> evidence,
+			VariableType... queryVariables) throws IOException {
+		int observed = 0;
+		int values = 0;
+		for (Map.Entry<VariableType, Boolean> entry : evidence.entrySet()) {
+			observed |= 1 << entry.getKey().ordinal();
+			if (entry.getValue()) {
+				values |= 1 << entry.getKey().ordinal();
+			}
+		}
+		int queryMask = 0;
+		for (VariableType var : queryVariables) {
+			queryMask |= 1 << var.ordinal();
+		}
+
+		int id = nextId++;
+		out.writeInt(InferenceServer.REQUEST_LENGTH);
+		out.writeInt(id);
+		out.writeInt(observed);
+		out.writeInt(values);
+		out.writeInt(queryMask);
+		out.flush();
+
+		int length = in.readInt();
+		int responseId = in.readInt();
+		byte status = in.readByte();
+		if (responseId != id && responseId != -1) {
+			throw new IOException("Response to request " + responseId
+					+ " while waiting for " + id);
+		}
+		if (status == InferenceServer.BUSY) {
+			throw new IllegalStateException("Server busy");
+		} else if (status != InferenceServer.OK) {
+			throw new IllegalArgumentException("Server rejected the request");
+		}
+
+		// The server answers the query variables in alphabetic order.
+		double[] answers = new double[(length - 5) / 8];
+		for (int i = 0; i < answers.length; i++) {
+			answers[i] = in.readDouble();
+		}
+		double[] output = new double[queryVariables.length + 1];
+		output[0] = answers[0];
+		for (int i = 0; i < queryVariables.length; i++) {
+			output[i + 1] = answers[1 + Integer.bitCount(queryMask
+					& ((1 << queryVariables[i].ordinal()) - 1))];
+		}
+		return output;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,496 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.BayesNet;
+import util.Histogram;
+import util.VariableType;
+import variableElimination.ArithmeticCircuit;
+import variableElimination.ModelHandle;
+
+/**
+ * Answers queries over TCP against the latest model of a ModelHandle, whose
+ * compiled arithmetic circuit is shared by every connection.
+ *
+ * Each message is a frame of its length in bytes followed by that many bytes.
+ * A request holds its id, then bit masks over the variable ordinals of the
+ * variables observed, the observed variables that are true, and the query
+ * variables. A response holds the id of its request and a status. An OK
+ * response then holds the probability of the evidence and the probability of
+ * true given the evidence of each query variable, in alphabetic order.
+ * Requests may be pipelined on a connection, and responses come back in the
+ * order their batches finish.
+ *
+ * Each connection is read by a thread of its own from a pool. Requests are
+ * queued for the batch workers, each taking the requests that arrive within
+ * the batch window of the first into one batch. A batch is evaluated in order
+ * of evidence, so requests with the same evidence share one evaluation. The
+ * queue is bounded, and a request arriving when it is full is answered BUSY
+ * straight away rather than waiting.
+ *
+ * Each batch is answered by the model that is latest when the batch starts, so
+ * new tables published to the handle are picked up without stopping the
+ * server, and a batch never mixes versions.
+ *
+ * The latency of every answered request, from being read to being answered,
+ * is recorded.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class InferenceServer {
+
+	static final byte OK = 0;
+	static final byte BUSY = 1;
+	static final byte BAD_REQUEST = 2;
+
+	static final int REQUEST_LENGTH = 16;
+
+	private final ModelHandle handle;
+
+	private long batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(200);
+	private int maxBatchSize = 256;
+	private int queueCapacity = 4096;
+	private int parallelism = 1;
+
+	private final Histogram latencies = new Histogram();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile boolean running;
+	private ServerSocket serverSocket;
+	private BlockingQueue<Request> queue;
+	private ExecutorService connections;
+	private ExecutorService batchers;
+	private final Set<Socket> sockets = new HashSet<Socket>();
+
+	/**
+	 * Creates a server for a copy of the given Bayes net, compiling it with
+	 * the given elimination order. Changes to the tables after this are not
+	 * seen unless published through the model handle.
+	 *
+	 * @param network
+	 * @param eliminationOrder
+	 */
+	public InferenceServer(BayesNet network, VariableType... eliminationOrder) {
+		this(new ModelHandle(network, eliminationOrder));
+	}
+
+	/**
+	 * Creates a server answering queries with the latest model of the given
+	 * handle.
+	 *
+	 * @param handle
+	 */
+	public InferenceServer(ModelHandle handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Returns the handle on the model queries are answered with.
+	 *
+	 * @return
+	 */
+	public ModelHandle getModelHandle() {
+		return handle;
+	}
+
+	/**
+	 * Sets how long a batch waits for more requests after its first, in
+	 * microseconds. Takes effect when the server starts.
+	 *
+	 * @param micros
+	 */
+	public void setBatchWindow(long micros) {
+		if (micros < 0) {
+			throw new IllegalArgumentException("Batch window must not be negative");
+		}
+		this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+	}
+
+	/**
+	 * Sets the largest number of requests in a batch. Takes effect when the
+	 * server starts.
+	 *
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Sets how many requests may wait for a batch before more are answered
+	 * BUSY. Takes effect when the server starts.
+	 *
+	 * @param queueCapacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the number of batch workers, each with its own evaluator. Takes
+	 * effect when the server starts.
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(parallelism, 1);
+	}
+
+	/**
+	 * Starts accepting connections on the given port of the loopback
+	 * address, or on any free port if it is 0.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (running) {
+			throw new IllegalStateException("Server already started");
+		}
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		queue = new ArrayBlockingQueue<Request>(queueCapacity);
+		connections = Executors.newCachedThreadPool();
+		batchers = Executors.newFixedThreadPool(parallelism);
+		running = true;
+
+		for (int i = 0; i < parallelism; i++) {
+			batchers.execute(new Batcher());
+		}
+		connections.execute(new Acceptor());
+	}
+
+	/**
+	 * Returns the port the server accepts connections on.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops the server, closing every connection. Requests still queued are
+	 * not answered.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		close(serverSocket);
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				close(socket);
+			}
+			sockets.clear();
+		}
+		connections.shutdownNow();
+		batchers.shutdownNow();
+	}
+
+	/**
+	 * Returns the latencies of the requests answered, in nanoseconds.
+	 *
+	 * @return
+	 */
+	public Histogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Returns an upper bound on the median latency, in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getP50LatencyNanos() {
+		return latencies.getPercentile(50);
+	}
+
+	/**
+	 * Returns an upper bound on the 99th percentile latency, in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getP99LatencyNanos() {
+		return latencies.getPercentile(99);
+	}
+
+	/**
+	 * Returns the number of requests answered BUSY.
+	 *
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing more to do with it.
+		}
+	}
+
+	/**
+	 * Accepts connections, handing each to a thread of its own.
+	 */
+	private class Acceptor implements Runnable {
+
+		public void run() {
+			while (running) {
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					// Closed by stop.
+					return;
+				}
+				synchronized (sockets) {
+					if (!running) {
+						close(socket);
+						return;
+					}
+					sockets.add(socket);
+				}
+				connections.execute(new Connection(socket));
+			}
+		}
+	}
+
+	/**
+	 * Reads the requests of a connection and writes its responses.
+	 */
+	private class Connection implements Runnable {
+
+		private final Socket socket;
+		private DataOutputStream out;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(
+						socket.getOutputStream()));
+
+				while (running) {
+					int length = in.readInt();
+					if (length != REQUEST_LENGTH) {
+						// Skip what can be skipped and give up on the rest.
+						if (length > 0) {
+							in.skipBytes(length);
+						}
+						respond(-1, BAD_REQUEST, null, 0);
+						continue;
+					}
+
+					Request request = new Request(this, in.readInt(),
+							in.readInt(), in.readInt(), in.readInt(),
+							System.nanoTime());
+					if (!queue.offer(request)) {
+						rejected.incrementAndGet();
+						respond(request.id, BUSY, null, 0);
+					}
+				}
+			} catch (EOFException e) {
+				// The client closed the connection.
+			} catch (SocketException e) {
+				// Closed by either end.
+			} catch (IOException e) {
+				// Nothing to answer on a broken connection.
+			} finally {
+				synchronized (sockets) {
+					sockets.remove(socket);
+				}
+				close(socket);
+			}
+		}
+
+		/**
+		 * Writes a response. Responses from different batches may be written
+		 * concurrently, so each is written whole under the lock of the
+		 * connection.
+		 *
+		 * @param id
+		 * @param status
+		 * @param results
+		 * @param numResults
+		 */
+		synchronized void respond(int id, byte status, double[] results,
+				int numResults) {
+			try {
+				out.writeInt(5 + numResults * 8);
+				out.writeInt(id);
+				out.writeByte(status);
+				for (int i = 0; i < numResults; i++) {
+					out.writeDouble(results[i]);
+				}
+				out.flush();
+			} catch (IOException e) {
+				// The reader of the connection sees it closed.
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Takes requests from the queue in batches and answers them with an
+	 * evaluator of its own.
+	 */
+	private class Batcher implements Runnable {
+
+		private ModelHandle.Model model;
+		private ArithmeticCircuit.Evaluator evaluator;
+		private int variableMask;
+		private final double[] results = new double[VariableType.values().length + 1];
+
+		public void run() {
+			List<Request> batch = new ArrayList<Request>();
+			try {
+				while (running) {
+					Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					long deadline = first.received + batchWindowNanos;
+					while (batch.size() < maxBatchSize) {
+						Request next = queue.poll(deadline - System.nanoTime(),
+								TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+
+					answer(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// Stopped.
+			}
+		}
+
+		/**
+		 * Answers a batch, evaluating the circuit once for each distinct
+		 * evidence.
+		 *
+		 * @param batch
+		 */
+		private void answer(List<Request> batch) {
+			ModelHandle.Model latest = handle.getModel();
+			if (latest != model) {
+				evaluator = latest.updateEvaluator(evaluator);
+				variableMask = 0;
+				for (VariableType var : VariableType.values()) {
+					if (latest.getCircuit().contains(var)) {
+						variableMask |= 1 << var.ordinal();
+					}
+				}
+				model = latest;
+			}
+			Collections.sort(batch, EVIDENCE_ORDER);
+
+			Request previous = null;
+			for (Request request : batch) {
+				int used = request.observed | request.query;
+				if ((used & ~variableMask) != 0
+						|| (request.values & ~request.observed) != 0) {
+					request.connection.respond(request.id, BAD_REQUEST, null, 0);
+					continue;
+				}
+
+				if (previous == null || EVIDENCE_ORDER.compare(previous, request) != 0) {
+					evaluator.resetEvidence();
+					for (VariableType var : VariableType.values()) {
+						if ((request.observed & (1 << var.ordinal())) != 0) {
+							evaluator.setEvidenceObservation(var,
+									(request.values & (1 << var.ordinal())) != 0);
+						}
+					}
+					evaluator.evaluate();
+					previous = request;
+				}
+
+				int numResults = 0;
+				results[numResults++] = evaluator.getProbabilityOfEvidence();
+				for (VariableType var : VariableType.values()) {
+					if ((request.query & (1 << var.ordinal())) != 0) {
+						results[numResults++] = evaluator.getMarginal(var);
+					}
+				}
+				request.connection.respond(request.id, OK, results, numResults);
+				latencies.record(System.nanoTime() - request.received);
+			}
+		}
+	}
+
+	private static final Comparator<Request> EVIDENCE_ORDER = new Comparator<Request>() {
+		public int compare(Request a, Request b) {
+			if (a.observed != b.observed) {
+				return (a.observed < b.observed) ? -1 : 1;
+			}
+			if (a.values != b.values) {
+				return (a.values < b.values) ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * A request waiting to be answered.
+	 */
+	private static class Request {
+		final Connection connection;
+		final int id;
+		final int observed;
+		final int values;
+		final int query;
+		final long received;
+
+		Request(Connection connection, int id, int observed, int values,
+				int query, long received) {
+			this.connection = connection;
+			this.id = id;
+			this.observed = observed;
+			this.values = values;
+			this.query = query;
+			this.received = received;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.VariableType;
+import variableElimination.ArithmeticCircuit;
+import variableElimination.VE;
+
+public class ArithmeticCircuitTest {
+
+	public static final double DELTA = 0.0001;
+
+	VE ve;
+	ArithmeticCircuit circuit;
+
+	@Before
+	public void setup() {
+		ve = new VE(VariableType.M, VariableType.S, VariableType.C,
+				VariableType.B, VariableType.I);
+		circuit = ve.compileCircuit();
+	}
+
+	@Test
+	public void priorMarginalsTest() {
+		ArithmeticCircuit.Evaluator evaluator = circuit.newEvaluator();
+		evaluator.evaluate();
+
+		assertEquals(1.0, evaluator.getProbabilityOfEvidence(), DELTA);
+		assertEquals(0.2, evaluator.getMarginal(VariableType.M), DELTA);
+		assertEquals(0.08, evaluator.getMarginal(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void evidenceMarginalsTest() {
+		ArithmeticCircuit.Evaluator evaluator = circuit.newEvaluator();
+		evaluator.setEvidenceObservation(VariableType.S, true);
+		evaluator.setEvidenceObservation(VariableType.C, false);
+		evaluator.evaluate();
+
+		for (VariableType var : VariableType.values()) {
+			if (var == VariableType.S || var == VariableType.C) {
+				continue;
+			}
+
+			ve.setEvidenceObservation(VariableType.S, true);
+			ve.setEvidenceObservation(VariableType.C, false);
+			assertEquals(ve.computeQuery(var), evaluator.getMarginal(var),
+					DELTA);
+		}
+		assertEquals(0.097276, evaluator.getMarginal(VariableType.M), DELTA);
+		assertEquals(1.0, evaluator.getMarginal(VariableType.S), DELTA);
+		assertEquals(0.0, evaluator.getMarginal(VariableType.C), DELTA);
+	}
+
+	@Test
+	public void readWriteTest() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		circuit.writeTo(out);
+		ArithmeticCircuit loaded = ArithmeticCircuit
+				.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(circuit.size(), loaded.size());
+		ArithmeticCircuit.Evaluator evaluator = loaded.newEvaluator();
+		evaluator.setEvidenceObservation(VariableType.S, true);
+		evaluator.evaluate();
+		assertEquals(0.207792, evaluator.getMarginal(VariableType.M), DELTA);
+	}
+
+	@Test
+	public void logProbabilityOfEvidenceTest() {
+		VariableType[] columns = { VariableType.S, VariableType.C,
+				VariableType.M };
+		boolean[][] values = { { true, true, false, true, false, true },
+				{ false, false, true, true, false, false },
+				{ true, false, false, true, true, true } };
+		boolean[][] missing = { new boolean[6],
+				{ false, false, false, true, true, false },
+				{ false, true, false, false, false, false } };
+		double[] logProbabilities = new double[6];
+		circuit.newEvaluator().computeLogProbabilitiesOfEvidence(columns,
+				values, missing, 6, logProbabilities);
+
+		ArithmeticCircuit.Evaluator evaluator = circuit.newEvaluator();
+		for (int r = 0; r < logProbabilities.length; r++) {
+			evaluator.resetEvidence();
+			for (int c = 0; c < columns.length; c++) {
+				if (!missing[c][r]) {
+					evaluator.setEvidenceObservation(columns[c], values[c][r]);
+				}
+			}
+			evaluator.evaluate();
+			assertEquals(Math.log(evaluator.getProbabilityOfEvidence()),
+					logProbabilities[r], DELTA);
+		}
+		assertEquals(logProbabilities[0], logProbabilities[5], 0);
+	}
+
+	@Test
+	public void duplicateColumnTest() {
+		VariableType[] columns = { VariableType.S, VariableType.S };
+		boolean[][] values = { { true }, { false } };
+		try {
+			circuit.newEvaluator().computeLogProbabilitiesOfEvidence(columns,
+					values, null, 1, new double[1]);
+			fail("Duplicate column");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import mcmc.DistributedMCMC;
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.VE;
+
+public class DistributedMCMCTest {
+
+	public static final double SAMPLING_DELTA = 0.02;
+
+	@Test
+	public void networkRoundTripTest() throws IOException {
+		BayesNet network = BayesNet.createExampleBayesNet();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		network.writeTo(bytes);
+		BayesNet copy = BayesNet.readFrom(new ByteArrayInputStream(bytes
+				.toByteArray()));
+
+		assertTrue(copy.hasSameStructure(network));
+		VE ve = new VE(copy, VariableType.values());
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+		assertEquals(0.097276, ve.computeQuery(VariableType.M), 0.0001);
+	}
+
+	@Test
+	public void workersTest() throws IOException {
+		DistributedMCMC mc = new DistributedMCMC(
+				BayesNet.createExampleBayesNet(), 1000, 20);
+		mc.setWorkers(2);
+		mc.setTolerance(0.005);
+		mc.setEvidenceObservation(VariableType.S, true);
+
+		assertEquals(0.207792, mc.computeQuery(VariableType.M), SAMPLING_DELTA);
+		assertTrue(mc.getSampleCount() >= 2 * 20 * 1000);
+		assertEquals(1.0, mc.computeMarginals(VariableType.S)
+				.get(VariableType.S).getProbability(true), 0);
+	}
+}
@@ -0,0 +1,87 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import learning.EMLearner;
+import learning.ParameterLearner;
+import util.BayesNet;
+import util.VariableType;
+
+public class EMLearnerTest {
+
+	public static final double DELTA = 0.0001;
+
+	BayesNet net;
+	EMLearner learner;
+
+	@Before
+	public void setup() {
+		net = BayesNet.createExampleBayesNet();
+		learner = new EMLearner(net);
+	}
+
+	private static String createRecords(boolean missing) {
+		StringBuilder csv = new StringBuilder("B,C,I,M,S\n");
+		for (int i = 0; i < 1000; i++) {
+			csv.append(i % 3 == 0 ? "1" : "0").append(',')
+					.append(i % 5 == 0 ? "1" : "0").append(',')
+					.append(missing && i % 4 == 0 ? "?" : i % 2 == 0 ? "1" : "0")
+					.append(',')
+					.append(missing && i % 6 == 1 ? "" : i % 7 == 0 ? "1" : "0")
+					.append(',').append(i % 11 == 0 ? "1" : "0").append('\n');
+		}
+		return csv.toString();
+	}
+
+	@Test
+	public void completeDataTest() throws IOException {
+		String csv = createRecords(false);
+		BayesNet counted = BayesNet.createExampleBayesNet();
+		ParameterLearner counter = new ParameterLearner(counted);
+		counter.count(new StringReader(csv));
+		counter.updateNetwork();
+
+		assertEquals(1000, learner.count(new StringReader(csv)));
+		learner.learn();
+
+		// With nothing missing the expected counts are the counts.
+		for (VariableType var : net.getVariables()) {
+			assertArrayEquals(counted.getProbabilities(var),
+					net.getProbabilities(var), DELTA);
+		}
+	}
+
+	@Test
+	public void missingDataTest() throws IOException {
+		String csv = createRecords(true);
+		learner.count(new StringReader(csv));
+		learner.setPseudoCount(0);
+
+		// Every iteration of EM raises the likelihood of the records.
+		learner.setMaxIterations(1);
+		double previous = learner.learn();
+		for (int i = 0; i < 10; i++) {
+			double logLikelihood = learner.learn();
+			assertTrue(logLikelihood >= previous - DELTA);
+			previous = logLikelihood;
+		}
+
+		BayesNet parallelNet = BayesNet.createExampleBayesNet();
+		EMLearner parallel = new EMLearner(parallelNet);
+		parallel.count(new StringReader(csv));
+		parallel.setPseudoCount(0);
+		parallel.setMaxIterations(11);
+		parallel.setParallelism(4);
+		assertEquals(previous, parallel.learn(), DELTA);
+		for (VariableType var : net.getVariables()) {
+			assertArrayEquals(net.getProbabilities(var),
+					parallelNet.getProbabilities(var), DELTA);
+		}
+	}
+}
@@ -116,6 +116,31 @@ public class FactorTest {
 		assertArrayEquals(values, PhiC.getValues(), DELTA);
 	}
 	
+	@Test
+	public void fixedViewTest() {
+		Factor other = PhiC.copy();
+		PhiC.fixVariable(VariableType.C, true);
+		PhiC.fixVariable(VariableType.I, false);
+		other.fixVariable(VariableType.C, true);
+		
+		assertEquals(0.05, PhiC.getProbability(false), DELTA);
+		assertEquals(0.8, PhiC.getProbability(true), DELTA);
+		
+		LinkedHashSet<Factor> factors = new LinkedHashSet<Factor>();
+		factors.add(PhiC);
+		factors.add(PhiB);
+		Factor result = Factor.pointwiseProduct(factors);
+		
+		VariableType[] vars = {VariableType.M, VariableType.B};
+		double[] values = { 0.05*0.95, 0.05*0.8, 0.8*0.05, 0.8*0.2 };
+		assertArrayEquals(vars, result.getVariables());
+		assertArrayEquals(values, result.getValues(), DELTA);
+		
+		other.sumOut(VariableType.B);
+		assertArrayEquals(new double[] { 0.85, 1.6 }, other.getValues(), DELTA);
+		assertArrayEquals(new double[] { 0.05, 0.8 }, PhiC.getValues(), DELTA);
+	}
+	
 	@Test
 	public void pointwiseProductTest() {
 		LinkedHashSet<Factor> factors = new LinkedHashSet<Factor>();
@@ -0,0 +1,102 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import server.InferenceClient;
+import server.InferenceServer;
+import util.BayesNet;
+import util.VariableType;
+
+public class InferenceServerTest {
+
+	public static final double DELTA = 0.0001;
+
+	InferenceServer server;
+
+	@Before
+	public void setup() throws IOException {
+		server = new InferenceServer(BayesNet.createExampleBayesNet());
+		server.setParallelism(2);
+		server.start(0);
+	}
+
+	@After
+	public void teardown() {
+		server.stop();
+	}
+
+	@Test
+	public void queryTest() throws IOException {
+		InferenceClient client = new InferenceClient("localhost",
+				server.getPort());
+		try {
+			Map<VariableType, Boolean> evidence = new EnumMap<VariableType, Boolean>(
+					VariableType.class);
+			double[] prior = client.query(evidence, VariableType.M,
+					VariableType.B);
+			assertEquals(1.0, prior[0], DELTA);
+			assertEquals(0.2, prior[1], DELTA);
+			assertEquals(0.08, prior[2], DELTA);
+
+			evidence.put(VariableType.S, true);
+			evidence.put(VariableType.C, false);
+			assertEquals(0.097276, client.query(evidence, VariableType.M)[1],
+					DELTA);
+
+			// Tables published to the handle are used by later batches.
+			server.getModelHandle().publish(VariableType.M, 0.5);
+			evidence.clear();
+			assertEquals(0.5, client.query(evidence, VariableType.M)[1], DELTA);
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void concurrentClientsTest() throws Exception {
+		Thread[] threads = new Thread[4];
+		final Throwable[] errors = new Throwable[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						InferenceClient client = new InferenceClient(
+								"localhost", server.getPort());
+						Map<VariableType, Boolean> evidence = new EnumMap<VariableType, Boolean>(
+								VariableType.class);
+						if (index % 2 == 0) {
+							evidence.put(VariableType.S, true);
+						}
+						double expected = (index % 2 == 0) ? 0.207792 : 0.2;
+						for (int i = 0; i < 200; i++) {
+							assertEquals(expected,
+									client.query(evidence, VariableType.M)[1],
+									DELTA);
+						}
+						client.close();
+					} catch (Throwable e) {
+						errors[index] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			if (errors[t] != null) {
+				throw new AssertionError(errors[t]);
+			}
+		}
+		assertEquals(800, server.getLatencies().getCount());
+		assertTrue(server.getP50LatencyNanos() <= server.getP99LatencyNanos());
+	}
+}
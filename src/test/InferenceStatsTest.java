@@ -0,0 +1,59 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import mcmc.MCMC;
+import util.Histogram;
+import util.InferenceStats;
+import util.VariableType;
+import variableElimination.VE;
+
+public class InferenceStatsTest {
+
+	@Test
+	public void histogramTest() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0.0001);
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void veStatsTest() {
+		InferenceStats stats = new InferenceStats();
+		VE ve = new VE(VariableType.M, VariableType.S, VariableType.C,
+				VariableType.B, VariableType.I);
+		ve.setMetrics(stats);
+
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+		ve.computeQuery(VariableType.M);
+
+		// B and I are eliminated.
+		assertEquals(1, stats.getQueryCount());
+		assertEquals(2, stats.getBucketCount());
+		// Eliminating B multiplies a factor over B, I and M.
+		assertEquals(8, stats.getMaxFactorSize());
+	}
+
+	@Test
+	public void mcmcStatsTest() {
+		InferenceStats stats = new InferenceStats();
+		MCMC mc = new MCMC(100, 10);
+		mc.setMetrics(stats);
+
+		mc.computeQuery(VariableType.M);
+
+		assertEquals(1, stats.getQueryCount());
+		assertEquals(1000, stats.getGibbsSteps());
+		assertTrue(stats.getAcceptanceRate() > 0);
+	}
+}
@@ -0,0 +1,66 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import beliefPropagation.LoopyBP;
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.VE;
+
+public class LoopyBPTest {
+
+	public static final double DELTA = 0.0001;
+
+	LoopyBP bp;
+
+	@Before
+	public void setup() {
+		bp = new LoopyBP(BayesNet.createTextbookBayesNet());
+	}
+
+	@Test
+	public void treeQueryTest() {
+		// Without loops the marginals are exact.
+		bp.setEvidenceObservation(VariableType.S, true);
+		bp.setEvidenceObservation(VariableType.M, true);
+
+		assertEquals(0.2842, bp.computeQuery(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void residualQueryTest() {
+		bp.turnOnResidualScheduling();
+		bp.setEvidenceObservation(VariableType.S, true);
+		bp.setEvidenceObservation(VariableType.M, true);
+
+		assertEquals(0.2842, bp.computeQuery(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void parallelResidualQueryTest() {
+		bp.turnOnResidualScheduling();
+		bp.setParallelism(4);
+		bp.setEvidenceObservation(VariableType.S, true);
+		bp.setEvidenceObservation(VariableType.M, true);
+
+		assertEquals(0.2842, bp.computeQuery(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void loopyQueryTest() {
+		bp = new LoopyBP();
+		bp.setDamping(0.2);
+		VE ve = new VE(VariableType.M, VariableType.S, VariableType.C,
+				VariableType.B, VariableType.I);
+
+		bp.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.S, true);
+		double result = bp.computeQuery(VariableType.M);
+
+		assertEquals(ve.computeQuery(VariableType.M), result, 0.05);
+		assertTrue(bp.getIterations() < 100);
+	}
+}
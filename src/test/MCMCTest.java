@@ -0,0 +1,48 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mcmc.MCMC;
+import util.VariableType;
+
+public class MCMCTest {
+
+	public static final double SAMPLING_DELTA = 0.02;
+
+	MCMC mc;
+
+	@Before
+	public void setup() {
+		mc = new MCMC(1000, 200);
+		mc.setEvidenceObservation(VariableType.S, true);
+	}
+
+	@Test
+	public void sampledValuesTest() {
+		assertEquals(0.207792, mc.computeQuery(VariableType.M), SAMPLING_DELTA);
+	}
+
+	@Test
+	public void raoBlackwellisedTest() {
+		mc.turnOnRaoBlackwellisation();
+		assertEquals(0.207792, mc.computeQuery(VariableType.M), SAMPLING_DELTA);
+		assertEquals(0.207792,
+				mc.computeMarginals(VariableType.M).get(VariableType.M)
+						.getProbability(true), SAMPLING_DELTA);
+	}
+
+	@Test
+	public void temperedTest() {
+		mc.setTemperatures(1, 2, 4);
+		mc.setSwapInterval(10);
+		mc.setParallelism(2);
+		assertEquals(0.207792, mc.computeQuery(VariableType.M), SAMPLING_DELTA);
+		assertTrue(mc.getSwapAcceptanceRate() > 0);
+		assertEquals(0.207792,
+				mc.computeJointQuery(VariableType.M).getProbability(true),
+				SAMPLING_DELTA);
+	}
+}
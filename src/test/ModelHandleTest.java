@@ -0,0 +1,73 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.ArithmeticCircuit;
+import variableElimination.ModelHandle;
+
+public class ModelHandleTest {
+
+	public static final double DELTA = 0.0001;
+
+	ModelHandle handle;
+
+	@Before
+	public void setup() {
+		handle = new ModelHandle(BayesNet.createExampleBayesNet());
+	}
+
+	@Test
+	public void publishTablesTest() {
+		ModelHandle.Model first = handle.getModel();
+		ArithmeticCircuit.Evaluator evaluator = first.newEvaluator();
+
+		ModelHandle.Model second = handle.publish(VariableType.M, 0.5);
+		assertEquals(1, first.getVersion());
+		assertEquals(2, second.getVersion());
+		assertSame(second, handle.getModel());
+		assertSame(first.getCircuit(), second.getCircuit());
+
+		// The old version still answers as before.
+		evaluator.evaluate();
+		assertEquals(0.2, evaluator.getMarginal(VariableType.M), DELTA);
+		assertEquals(0.2, first.getNetwork().getProbabilities(VariableType.M)[0],
+				DELTA);
+
+		assertSame(evaluator, second.updateEvaluator(evaluator));
+		evaluator.evaluate();
+		assertEquals(0.5, evaluator.getMarginal(VariableType.M), DELTA);
+		assertEquals(0.5, second.newVE(VariableType.values()).computeQuery(
+				VariableType.M), DELTA);
+
+		// Changing the network of a VE leaves the published version as it is.
+		second.newVE(VariableType.values()).getNetwork()
+				.setConditionalProbabilities(VariableType.M, 0.9);
+		assertEquals(0.5, second.getNetwork().getProbabilities(VariableType.M)[0],
+				DELTA);
+		evaluator = second.newEvaluator();
+		evaluator.evaluate();
+		assertEquals(0.5, evaluator.getMarginal(VariableType.M), DELTA);
+	}
+
+	@Test
+	public void publishStructureTest() {
+		ModelHandle.Model first = handle.getModel();
+		ArithmeticCircuit.Evaluator evaluator = first.newEvaluator();
+
+		BayesNet network = first.getNetwork();
+		network.setConditionalProbabilities(VariableType.S,
+				new VariableType[] {}, new double[] { 0.3 });
+		ModelHandle.Model second = handle.publish(network);
+		assertNotSame(first.getCircuit(), second.getCircuit());
+
+		evaluator = second.updateEvaluator(evaluator);
+		assertSame(second.getCircuit(), evaluator.getCircuit());
+		evaluator.evaluate();
+		assertEquals(0.3, evaluator.getMarginal(VariableType.S), DELTA);
+	}
+}
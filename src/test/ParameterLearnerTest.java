@@ -0,0 +1,99 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import learning.ParameterLearner;
+import util.BayesNet;
+import util.VariableType;
+
+public class ParameterLearnerTest {
+
+	public static final double DELTA = 0.0001;
+
+	BayesNet net;
+	ParameterLearner learner;
+
+	@Before
+	public void setup() {
+		net = BayesNet.createExampleBayesNet();
+		learner = new ParameterLearner(net);
+	}
+
+	@Test
+	public void countTest() throws IOException {
+		String csv = "M,B,I,C,S\n" + "T,T,F,T,F\n" + "T,F,F,F,F\n"
+				+ "F,F,F,F,T\n" + "F,?,F,F,F\n";
+		assertEquals(4, learner.count(new StringReader(csv)));
+
+		// B given M: the record missing B isn't counted.
+		assertArrayEquals(new long[] { 1, 0, 1, 1 },
+				learner.getCounts(VariableType.B));
+		assertArrayEquals(new long[] { 2, 2 }, learner.getCounts(VariableType.M));
+
+		learner.setPseudoCount(1);
+		learner.updateNetwork();
+		assertEquals(0.5, net.getProbabilities(VariableType.M)[0], DELTA);
+		assertEquals(1.0 / 3, net.getProbabilities(VariableType.B)[0], DELTA);
+		assertEquals(0.5, net.getProbabilities(VariableType.B)[1], DELTA);
+	}
+
+	@Test
+	public void parallelCountTest() throws IOException {
+		StringBuilder csv = new StringBuilder("B,C,I,M,S\n");
+		for (int i = 0; i < 10000; i++) {
+			csv.append(i % 3 == 0 ? "1" : "0").append(',')
+					.append(i % 5 == 0 ? "1" : "0").append(',')
+					.append(i % 2 == 0 ? "1" : "0").append(',')
+					.append(i % 7 == 0 ? "1" : "0").append(',')
+					.append(i % 11 == 0 ? "1" : "0").append('\n');
+		}
+
+		ParameterLearner sequential = new ParameterLearner(net);
+		sequential.count(new StringReader(csv.toString()));
+		learner.setParallelism(4);
+		assertEquals(10000, learner.count(new StringReader(csv.toString())));
+
+		for (VariableType var : VariableType.values()) {
+			assertArrayEquals(sequential.getCounts(var), learner.getCounts(var));
+		}
+	}
+
+	@Test
+	public void parallelBadRecordTest() throws IOException {
+		StringBuilder csv = new StringBuilder("B,C,I,M,S\n");
+		for (int i = 0; i < 10000; i++) {
+			csv.append(i == 9000 ? "X" : "1").append(",0,1,0,1\n");
+		}
+
+		learner.setParallelism(4);
+		try {
+			learner.count(new StringReader(csv.toString()));
+			fail("Unknown value");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+
+		// None of the records before the bad one are kept.
+		for (VariableType var : VariableType.values()) {
+			for (long count : learner.getCounts(var)) {
+				assertEquals(0, count);
+			}
+		}
+	}
+
+	@Test
+	public void duplicateColumnTest() throws IOException {
+		try {
+			learner.count(new StringReader("M,B,M\nT,F,F\n"));
+			fail("Duplicate column");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
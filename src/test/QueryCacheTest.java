@@ -0,0 +1,78 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.QueryCache;
+import util.VariableType;
+import variableElimination.VE;
+
+public class QueryCacheTest {
+
+	public static final double DELTA = 0.0001;
+
+	QueryCache cache;
+
+	@Before
+	public void setup() {
+		cache = new QueryCache(new VE(VariableType.M, VariableType.S,
+				VariableType.C, VariableType.B, VariableType.I), 2);
+	}
+
+	@Test
+	public void hitTest() {
+		cache.setEvidenceObservation(VariableType.S, true);
+		cache.setEvidenceObservation(VariableType.C, false);
+		double first = cache.computeQuery(VariableType.M);
+
+		// Same evidence, observed in a different order.
+		cache.setEvidenceObservation(VariableType.C, false);
+		cache.setEvidenceObservation(VariableType.S, true);
+		double second = cache.computeQuery(VariableType.M);
+
+		assertEquals(0.097276, first, DELTA);
+		assertEquals(first, second, DELTA);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void evictionTest() {
+		cache.computeQuery(VariableType.B);
+		cache.computeQuery(VariableType.C);
+		cache.computeQuery(VariableType.B);
+		cache.computeQuery(VariableType.I);
+
+		// C was the least recently used.
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		cache.computeQuery(VariableType.B);
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void invalidationTest() {
+		assertEquals(0.2, cache.computeQuery(VariableType.M), DELTA);
+
+		cache.getNetwork().setConditionalProbabilities(VariableType.M, 0.5);
+
+		assertEquals(0.5, cache.computeQuery(VariableType.M), DELTA);
+		assertEquals(0, cache.getHitCount());
+	}
+
+	@Test
+	public void networkSwapTest() {
+		VE ve = new VE(VariableType.M, VariableType.S, VariableType.C,
+				VariableType.B, VariableType.I);
+		QueryCache swapped = new QueryCache(ve, 2);
+		assertEquals(0.08, swapped.computeQuery(VariableType.B), DELTA);
+
+		// The textbook net may reach the same version as the example net.
+		ve.setupExampleBayesNet();
+		assertEquals(ve.computeQuery(VariableType.B),
+				swapped.computeQuery(VariableType.B), DELTA);
+		assertEquals(0, swapped.getHitCount());
+	}
+}
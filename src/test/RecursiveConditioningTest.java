@@ -0,0 +1,57 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import recursiveConditioning.RecursiveConditioning;
+import util.BayesNet;
+import util.VariableType;
+import variableElimination.VE;
+
+public class RecursiveConditioningTest {
+
+	public static final double DELTA = 0.0001;
+
+	@Test
+	public void exampleTest() {
+		RecursiveConditioning rc = new RecursiveConditioning(VariableType.M,
+				VariableType.S, VariableType.C, VariableType.B, VariableType.I);
+		assertEquals(0.2, rc.computeQuery(VariableType.M), DELTA);
+		assertEquals(0.08, rc.computeQuery(VariableType.B), DELTA);
+
+		rc.setEvidenceObservation(VariableType.S, true);
+		rc.setEvidenceObservation(VariableType.C, false);
+		assertEquals(0.097276, rc.computeQuery(VariableType.M), DELTA);
+	}
+
+	@Test
+	public void cacheBudgetTest() {
+		BayesNet net = BayesNet.createTextbookBayesNet();
+		RecursiveConditioning rc = new RecursiveConditioning(net);
+		rc.setEvidenceObservation(VariableType.S, true);
+		rc.setEvidenceObservation(VariableType.M, true);
+
+		long[] budgets = { 0, 2, Long.MAX_VALUE };
+		long previousCalls = Long.MAX_VALUE;
+		for (long budget : budgets) {
+			rc.setCacheBudget(budget);
+			assertTrue(rc.getCacheSize() <= budget);
+			for (VariableType var : VariableType.values()) {
+				if (var == VariableType.S || var == VariableType.M) {
+					continue;
+				}
+				VE ve = new VE(net, VariableType.values());
+				ve.setEvidenceObservation(VariableType.S, true);
+				ve.setEvidenceObservation(VariableType.M, true);
+				assertEquals(ve.computeQuery(var), rc.computeQuery(var), DELTA);
+			}
+
+			// Caching never makes more calls.
+			rc.computeQuery(VariableType.B);
+			assertTrue(rc.getCallCount() <= previousCalls);
+			previousCalls = rc.getCallCount();
+		}
+		assertEquals(0.2842, rc.computeQuery(VariableType.B), DELTA);
+	}
+}
@@ -0,0 +1,259 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import variableElimination.EliminationTrace;
+import variableElimination.Factor;
+import variableElimination.VE;
+import util.VariableType;
+
+public class VETest {
+
+	public static final double DELTA = 0.0001;
+
+	VE ve;
+
+	@Before
+	public void setup() {
+		ve = new VE(VariableType.M, VariableType.S, VariableType.C,
+				VariableType.B, VariableType.I);
+	}
+
+	@Test
+	public void priorQueryTest() {
+		assertEquals(0.2, ve.computeQuery(VariableType.M), DELTA);
+		assertEquals(0.08, ve.computeQuery(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void evidenceQueryTest() {
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+
+		assertEquals(0.097276, ve.computeQuery(VariableType.M), DELTA);
+	}
+
+	@Test
+	public void parallelQueryTest() {
+		ve.setParallelism(4);
+
+		for (VariableType var : VariableType.values()) {
+			if (var == VariableType.S) {
+				continue;
+			}
+
+			VE sequential = new VE(VariableType.M, VariableType.S,
+					VariableType.C, VariableType.B, VariableType.I);
+			sequential.setEvidenceObservation(VariableType.S, true);
+			ve.setEvidenceObservation(VariableType.S, true);
+
+			assertEquals(sequential.computeQuery(var), ve.computeQuery(var),
+					DELTA);
+		}
+	}
+
+	@Test
+	public void messageCacheTest() {
+		ve.setEliminationOrdering(VariableType.S, VariableType.C,
+				VariableType.I, VariableType.B, VariableType.M);
+		ve.setMessageCacheSize(100);
+
+		ve.setEvidenceObservation(VariableType.C, false);
+		ve.computeQuery(VariableType.M);
+		assertEquals(0, ve.getMessageCache().getHitCount());
+
+		// Only the subtree holding the S table is affected by the new
+		// evidence, so the message from eliminating I can be reused.
+		ve.setEvidenceObservation(VariableType.C, false);
+		ve.setEvidenceObservation(VariableType.S, true);
+		assertEquals(0.097276, ve.computeQuery(VariableType.M), DELTA);
+		assertEquals(1, ve.getMessageCache().getHitCount());
+	}
+
+	@Test
+	public void traceTest() throws IOException {
+		EliminationTrace trace = new EliminationTrace(3);
+		ve.setTrace(trace);
+
+		for (int i = 0; i < 2; i++) {
+			ve.setEvidenceObservation(VariableType.S, true);
+			ve.setEvidenceObservation(VariableType.C, false);
+			ve.computeQuery(VariableType.M);
+		}
+
+		// Only the most recent steps are kept.
+		List<EliminationTrace.Step> steps = trace.getSteps();
+		assertEquals(3, steps.size());
+		assertEquals(1, steps.get(0).query);
+		assertEquals(2, steps.get(2).query);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		trace.writeTo(out);
+		List<EliminationTrace.Step> read = EliminationTrace
+				.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(3, read.size());
+		assertEquals(steps.get(1).var, read.get(1).var);
+		assertArrayEquals(steps.get(1).inputScopes, read.get(1).inputScopes);
+		assertEquals(steps.get(1).cells, read.get(1).cells);
+	}
+
+	@Test
+	public void textbookQueryTest() {
+		ve.setupExampleBayesNet();
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.M, true);
+
+		assertEquals(0.2842, ve.computeQuery(VariableType.B), DELTA);
+	}
+
+	@Test
+	public void compiledPlanTest() {
+		ve.turnOnCompiledPlans();
+
+		for (int i = 0; i < 2; i++) {
+			ve.setEvidenceObservation(VariableType.S, true);
+			ve.setEvidenceObservation(VariableType.C, false);
+			assertEquals(0.097276, ve.computeQuery(VariableType.M), DELTA);
+		}
+
+		// The plan is reused with the new tables.
+		ve.getNetwork().setConditionalProbabilities(VariableType.M, 0.5);
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+		double result = ve.computeQuery(VariableType.M);
+
+		ve.turnOffCompiledPlans();
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+		assertEquals(ve.computeQuery(VariableType.M), result, DELTA);
+	}
+
+	@Test
+	public void specialisedKernelTest() {
+		Factor.turnOnSpecialisedKernels();
+		try {
+			ve.setEvidenceObservation(VariableType.S, true);
+			ve.setEvidenceObservation(VariableType.C, false);
+			assertEquals(0.097276, ve.computeQuery(VariableType.M), DELTA);
+			assertEquals(0.08, ve.computeQuery(VariableType.B), DELTA);
+		} finally {
+			Factor.turnOffSpecialisedKernels();
+		}
+	}
+
+	@Test
+	public void mpeTest() {
+		ve.setupExampleBayesNet();
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.M, true);
+		Map<VariableType, Boolean> mpe = ve.computeMPE();
+
+		assertEquals(3, mpe.size());
+		assertFalse(mpe.get(VariableType.B));
+		assertTrue(mpe.get(VariableType.C));
+		assertFalse(mpe.get(VariableType.I));
+	}
+
+	@Test
+	public void mapTest() {
+		ve.setupExampleBayesNet();
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.M, true);
+		Map<VariableType, Boolean> map = ve.computeMAP(VariableType.C);
+
+		assertEquals(1, map.size());
+		assertTrue(map.get(VariableType.C));
+	}
+
+	@Test
+	public void jointQueryTest() {
+		ve.setEvidenceObservation(VariableType.S, true);
+		Factor joint = ve.computeJointQuery(VariableType.M, VariableType.B);
+
+		// The variables are in alphabetic order, so B comes first.
+		double sum = 0;
+		for (double value : joint.getValues()) {
+			sum += value;
+		}
+		assertEquals(1.0, sum, DELTA);
+		assertEquals(0.207792, joint.getProbability(false, true)
+				+ joint.getProbability(true, true), DELTA);
+	}
+
+	@Test
+	public void marginalsTest() {
+		ve.setEvidenceObservation(VariableType.S, true);
+		Map<VariableType, Factor> marginals = ve.computeMarginals(
+				VariableType.M, VariableType.S, VariableType.C);
+
+		assertEquals(0.207792, marginals.get(VariableType.M).getProbability(true),
+				DELTA);
+		assertEquals(1.0, marginals.get(VariableType.S).getProbability(true),
+				DELTA);
+
+		ve.setEvidenceObservation(VariableType.S, true);
+		assertEquals(ve.computeQuery(VariableType.C), marginals.get(
+				VariableType.C).getProbability(true), DELTA);
+	}
+
+	@Test
+	public void memoryBudgetTest() {
+		VE exact = new VE(VariableType.M, VariableType.I, VariableType.B,
+				VariableType.C, VariableType.S);
+		exact.setEvidenceObservation(VariableType.C, false);
+		double expected = exact.computeQuery(VariableType.S);
+
+		// Eliminating B first joins every other variable into one message.
+		VE wide = new VE(VariableType.B, VariableType.I, VariableType.M,
+				VariableType.C, VariableType.S);
+		wide.setEvidenceObservation(VariableType.C, false);
+		assertEquals(16, wide.estimateLargestFactor(VariableType.S));
+
+		wide.setMemoryBudget(8);
+		assertEquals(expected, wide.computeQuery(VariableType.S), DELTA);
+
+		wide.setMemoryBudget(4);
+		wide.setEvidenceObservation(VariableType.C, false);
+		try {
+			wide.computeQuery(VariableType.S);
+			fail("Query over budget");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void miniBucketBoundsTest() {
+		ve.setEvidenceObservation(VariableType.S, true);
+		ve.setEvidenceObservation(VariableType.C, false);
+		double[] bounds = ve.computeQueryBounds(VariableType.M, 3);
+		assertEquals(0.097276, bounds[0], DELTA);
+		assertEquals(0.097276, bounds[1], DELTA);
+
+		// Eliminating B first is too wide for mini-buckets of 2 variables.
+		VE wide = new VE(VariableType.B, VariableType.I, VariableType.M,
+				VariableType.C, VariableType.S);
+		wide.setEvidenceObservation(VariableType.C, false);
+		double expected = wide.computeQuery(VariableType.S);
+
+		wide.setEvidenceObservation(VariableType.C, false);
+		bounds = wide.computeQueryBounds(VariableType.S, 2);
+		assertTrue(bounds[0] <= expected);
+		assertTrue(bounds[1] >= expected);
+		assertTrue(bounds[1] - bounds[0] > 0.1);
+
+		wide.setEvidenceObservation(VariableType.C, false);
+		bounds = wide.computeQueryBounds(VariableType.S, 4);
+		assertEquals(expected, bounds[0], DELTA);
+		assertEquals(expected, bounds[1], DELTA);
+	}
+}
@@ -0,0 +1,363 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The structure and conditional probability tables of a Bayes Net, shared by
+ * the inference algorithms.
+ *
+ * Each variable has an alphabetically ordered array of parents and an array of
+ * probabilities of the variable being true, one for each assignment to its
+ * parents. The first parent is the most significant bit of the index into
+ * that array, so for parents (B, I) the probability given B = true, I = false
+ * is at index 0b10, or 2.
+ *
+ * Every change to a table increments the version of the network, so anything
+ * derived from the tables can tell when it is stale. Changes to the parents of
+ * a variable also increment the structure version, so anything derived only
+ * from the structure can tell when it is stale.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class BayesNet {
+
+	private static final int MAGIC = 0x424e4554; // "BNET"
+
+	private EnumMap<VariableType, VariableType[]> parents;
+	private EnumMap<VariableType, double[]> probabilities;
+
+	private volatile long version;
+	private volatile long structureVersion;
+
+	/**
+	 * Creates an empty Bayes Net.
+	 */
+	public BayesNet() {
+		parents = new EnumMap<VariableType, VariableType[]>(VariableType.class);
+		probabilities = new EnumMap<VariableType, double[]>(VariableType.class);
+		version = 0;
+	}
+
+	/**
+	 * Creates the Bayes Net for the specific example.
+	 *
+	 * Where:
+	 *
+	 * M->B M->I B->C I->C B->S
+	 *
+	 * @return
+	 */
+	public static BayesNet createExampleBayesNet() {
+		BayesNet net = new BayesNet();
+
+		net.setConditionalProbabilities(VariableType.B, new VariableType[] {
+				VariableType.M
+		}, new double[] {
+					  // M
+				0.05, // F
+				0.20  // T
+		});
+
+		net.setConditionalProbabilities(VariableType.C, new VariableType[] {
+				VariableType.B,
+				VariableType.I
+		}, new double[] {
+					  // B I
+				0.05, // F F
+				0.80, // F T
+				0.80, // T F
+				0.80  // T T
+		});
+
+		net.setConditionalProbabilities(VariableType.I, new VariableType[] {
+				VariableType.M
+		}, new double[] {
+					  // M
+				0.20, // F
+				0.80  // T
+		});
+
+		net.setConditionalProbabilities(VariableType.M, new VariableType[] {},
+				new double[] {
+				0.20
+		});
+
+		net.setConditionalProbabilities(VariableType.S, new VariableType[] {
+				VariableType.B
+		}, new double[] {
+					  // B
+				0.60, // F
+				0.80  // T
+		});
+
+		return net;
+	}
+
+	/**
+	 * Creates the Bayes Net like the one in the textbook, used for validation.
+	 *
+	 * Where:
+	 *
+	 * C->A B->B I->E S->J M->M
+	 *
+	 * @return
+	 */
+	public static BayesNet createTextbookBayesNet() {
+		BayesNet net = new BayesNet();
+
+		net.setConditionalProbabilities(VariableType.B, new VariableType[] {},
+				new double[] {
+				0.001
+		});
+
+		net.setConditionalProbabilities(VariableType.C, new VariableType[] {
+				VariableType.B,
+				VariableType.I
+		}, new double[] {
+					   // B(B) I(E)
+				0.001, // F    F
+				0.29,  // F    T
+				0.94,  // T    F
+				0.95   // T    T
+		});
+
+		net.setConditionalProbabilities(VariableType.I, new VariableType[] {},
+				new double[] {
+				0.002
+		});
+
+		net.setConditionalProbabilities(VariableType.M, new VariableType[] {
+				VariableType.C
+		}, new double[] {
+					  // C(A)
+				0.01, // F
+				0.70  // T
+		});
+
+		net.setConditionalProbabilities(VariableType.S, new VariableType[] {
+				VariableType.C
+		}, new double[] {
+					  // C(A)
+				0.05, // F
+				0.90  // T
+		});
+
+		return net;
+	}
+
+	/**
+	 * Sets the parents of a variable and the probabilities of it being true
+	 * for each assignment to those parents.
+	 *
+	 * @param var
+	 * @param parents
+	 * @param probabilities
+	 */
+	public void setConditionalProbabilities(VariableType var,
+			VariableType[] parents, double[] probabilities) {
+		for (int i = 1; i < parents.length; i++) {
+			if (parents[i - 1].compareTo(parents[i]) >= 0) {
+				throw new IllegalArgumentException(
+						"Parents must be unique and in alphabetical order");
+			}
+		}
+		if (probabilities.length != 1 << parents.length) {
+			throw new IllegalArgumentException("Expected "
+					+ (1 << parents.length) + " probabilities for " + var);
+		}
+
+		if (!Arrays.equals(this.parents.get(var), parents)) {
+			structureVersion++;
+		}
+		this.parents.put(var, parents.clone());
+		this.probabilities.put(var, probabilities.clone());
+		version++;
+	}
+
+	/**
+	 * Replaces the probabilities of a variable being true for each assignment
+	 * to its existing parents.
+	 *
+	 * @param var
+	 * @param probabilities
+	 */
+	public void setConditionalProbabilities(VariableType var,
+			double... probabilities) {
+		setConditionalProbabilities(var, getParents(var), probabilities);
+	}
+
+	/**
+	 * Returns a copy of this Bayes Net, with versions starting from 0.
+	 *
+	 * @return
+	 */
+	public BayesNet copy() {
+		BayesNet output = new BayesNet();
+		for (VariableType var : parents.keySet()) {
+			output.setConditionalProbabilities(var, parents.get(var),
+					probabilities.get(var));
+		}
+		return output;
+	}
+
+	/**
+	 * Writes the structure and tables of this Bayes Net in a compact binary
+	 * form, to be read back with readFrom.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeByte(parents.size());
+		for (VariableType var : parents.keySet()) {
+			data.writeByte(var.ordinal());
+			VariableType[] varParents = parents.get(var);
+			data.writeByte(varParents.length);
+			for (VariableType parent : varParents) {
+				data.writeByte(parent.ordinal());
+			}
+			for (double probability : probabilities.get(var)) {
+				data.writeDouble(probability);
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads a Bayes Net written by writeTo.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static BayesNet readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a Bayes net");
+		}
+
+		BayesNet output = new BayesNet();
+		int numVars = data.readUnsignedByte();
+		for (int v = 0; v < numVars; v++) {
+			VariableType var = VariableType.values()[data.readUnsignedByte()];
+			VariableType[] varParents = new VariableType[data.readUnsignedByte()];
+			for (int i = 0; i < varParents.length; i++) {
+				varParents[i] = VariableType.values()[data.readUnsignedByte()];
+			}
+			double[] varProbabilities = new double[1 << varParents.length];
+			for (int i = 0; i < varProbabilities.length; i++) {
+				varProbabilities[i] = data.readDouble();
+			}
+			output.setConditionalProbabilities(var, varParents, varProbabilities);
+		}
+		return output;
+	}
+
+	/**
+	 * Returns whether the given Bayes Net has the same variables with the same
+	 * parents as this one.
+	 *
+	 * @param that
+	 * @return
+	 */
+	public boolean hasSameStructure(BayesNet that) {
+		if (!parents.keySet().equals(that.parents.keySet())) {
+			return false;
+		}
+		for (VariableType var : parents.keySet()) {
+			if (!Arrays.equals(parents.get(var), that.parents.get(var))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the variables in this Bayes Net, in alphabetical order.
+	 *
+	 * @return
+	 */
+	public Set<VariableType> getVariables() {
+		return parents.keySet();
+	}
+
+	/**
+	 * Returns the parents of the given variable, in alphabetical order.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public VariableType[] getParents(VariableType var) {
+		VariableType[] output = parents.get(var);
+		if (output == null) {
+			throw new IllegalArgumentException(var + " is not in this Bayes Net");
+		}
+		return output.clone();
+	}
+
+	/**
+	 * Returns the children of the given variable, in alphabetical order.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public VariableType[] getChildren(VariableType var) {
+		List<VariableType> children = new ArrayList<VariableType>();
+		for (VariableType child : parents.keySet()) {
+			for (VariableType parent : parents.get(child)) {
+				if (parent.equals(var)) {
+					children.add(child);
+				}
+			}
+		}
+		return children.toArray(new VariableType[children.size()]);
+	}
+
+	/**
+	 * Returns the probabilities of the given variable being true for each
+	 * assignment to its parents.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public double[] getProbabilities(VariableType var) {
+		double[] output = probabilities.get(var);
+		if (output == null) {
+			throw new IllegalArgumentException(var + " is not in this Bayes Net");
+		}
+		return output.clone();
+	}
+
+	/**
+	 * Returns the version of this Bayes Net, incremented on every change to
+	 * its tables.
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the structure version of this Bayes Net, incremented on every
+	 * change to the parents of a variable.
+	 *
+	 * @return
+	 */
+	public long getStructureVersion() {
+		return structureVersion;
+	}
+}
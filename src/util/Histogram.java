@@ -0,0 +1,122 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non-negative values, with a bucket for each power
+ * of two. Percentiles are accurate to within a factor of two, which is enough
+ * to see where the time goes without the cost of keeping every value.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class Histogram {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		// Bucket i holds values below 2^i.
+		buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the values recorded.
+	 *
+	 * @return
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded, or 0 if there are none.
+	 *
+	 * @return
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound on the given percentile of the values recorded,
+	 * or 0 if there are none.
+	 *
+	 * @param percentile
+	 *            between 0 and 100.
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile / 100 * n);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				if (i == 0) {
+					return 0;
+				}
+				// Nothing above the largest value recorded.
+				return (i < Long.SIZE) ? Math.min((1L << i) - 1, max.get())
+						: max.get();
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Discards all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
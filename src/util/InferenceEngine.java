@@ -0,0 +1,41 @@
+package util;
+
+/**
+ * An inference algorithm that computes queries on a Bayes Net given evidence
+ * observations.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public interface InferenceEngine {
+
+	/**
+	 * Sets an observation of a variable for the next query.
+	 *
+	 * @param var
+	 * @param observation
+	 */
+	public void setEvidenceObservation(VariableType var, boolean observation);
+
+	/**
+	 * Returns the probability of a true assignment to the query variable given
+	 * the evidence observations.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public double computeQuery(VariableType var);
+
+	/**
+	 * Removes all evidence observations.
+	 */
+	public void resetBayesNet();
+
+	/**
+	 * Returns the Bayes net queries are computed against.
+	 *
+	 * @return
+	 */
+	public BayesNet getNetwork();
+}
@@ -0,0 +1,74 @@
+package util;
+
+/**
+ * Receives measurements from the inference algorithms and the Factor
+ * operations they are built on. Implement this to send the measurements
+ * somewhere, or use InferenceStats to collect them in memory and over JMX.
+ *
+ * Implementations may be called from several threads at once, and are called
+ * on the hot path, so should return quickly. When no metrics are set nothing
+ * is measured.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public interface InferenceMetrics {
+
+	/**
+	 * Called when a query has been computed.
+	 *
+	 * @param nanos
+	 *            wall time taken by the query.
+	 */
+	public void queryComputed(long nanos);
+
+	/**
+	 * Called when a bucket of the elimination tree has been eliminated.
+	 *
+	 * @param var
+	 *            the variable eliminated.
+	 * @param nanos
+	 *            wall time taken to multiply and sum out the bucket.
+	 * @param cells
+	 *            number of cells in the product of the bucket, the largest
+	 *            factor built to eliminate it.
+	 */
+	public void bucketEliminated(VariableType var, long nanos, int cells);
+
+	/**
+	 * Called when two Factor tables have been multiplied together.
+	 *
+	 * @param cells
+	 *            number of cells in the product.
+	 */
+	public void factorsMultiplied(int cells);
+
+	/**
+	 * Called when a variable has been summed out of a Factor table.
+	 *
+	 * @param cells
+	 *            number of cells summed.
+	 */
+	public void variableSummedOut(int cells);
+
+	/**
+	 * Called when a new array of values has been allocated for a Factor table.
+	 *
+	 * @param cells
+	 *            number of cells allocated.
+	 */
+	public void factorAllocated(int cells);
+
+	/**
+	 * Called when a chain of MCMC has finished.
+	 *
+	 * @param steps
+	 *            number of Gibbs steps taken.
+	 * @param changes
+	 *            number of steps that changed the sampled value.
+	 * @param nanos
+	 *            wall time taken by the chain.
+	 */
+	public void chainCompleted(long steps, long changes, long nanos);
+}
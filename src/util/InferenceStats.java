@@ -0,0 +1,238 @@
+package util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects inference measurements in memory as counters and histograms, and
+ * can publish them over JMX.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class InferenceStats implements InferenceMetrics, InferenceStatsMBean {
+
+	private final Histogram queryNanos = new Histogram();
+	private final Histogram bucketNanos = new Histogram();
+	private final Histogram factorSizes = new Histogram();
+	private final Histogram bucketSizes = new Histogram();
+
+	private final AtomicLong cellsMultiplied = new AtomicLong();
+	private final AtomicLong cellsSummed = new AtomicLong();
+	private final AtomicLong cellsAllocated = new AtomicLong();
+
+	private final AtomicLong gibbsSteps = new AtomicLong();
+	private final AtomicLong gibbsChanges = new AtomicLong();
+	private final AtomicLong gibbsNanos = new AtomicLong();
+
+	public void queryComputed(long nanos) {
+		queryNanos.record(nanos);
+	}
+
+	public void bucketEliminated(VariableType var, long nanos, int cells) {
+		bucketNanos.record(nanos);
+		bucketSizes.record(cells);
+	}
+
+	public void factorsMultiplied(int cells) {
+		cellsMultiplied.addAndGet(cells);
+	}
+
+	public void variableSummedOut(int cells) {
+		cellsSummed.addAndGet(cells);
+	}
+
+	public void factorAllocated(int cells) {
+		cellsAllocated.addAndGet(cells);
+		factorSizes.record(cells);
+	}
+
+	public void chainCompleted(long steps, long changes, long nanos) {
+		gibbsSteps.addAndGet(steps);
+		gibbsChanges.addAndGet(changes);
+		gibbsNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Publishes these statistics on the platform MBean server under the given
+	 * name, such as "bayesnet:type=InferenceStats".
+	 *
+	 * @param name
+	 * @throws JMException
+	 */
+	public void registerMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(name));
+	}
+
+	/**
+	 * Returns the histogram of query wall times in nanoseconds.
+	 *
+	 * @return
+	 */
+	public Histogram getQueryNanos() {
+		return queryNanos;
+	}
+
+	/**
+	 * Returns the histogram of bucket elimination wall times in nanoseconds.
+	 *
+	 * @return
+	 */
+	public Histogram getBucketNanos() {
+		return bucketNanos;
+	}
+
+	/**
+	 * Returns the histogram of the number of cells in each Factor table
+	 * allocated.
+	 *
+	 * @return
+	 */
+	public Histogram getFactorSizes() {
+		return factorSizes;
+	}
+
+	/**
+	 * Returns the histogram of the number of cells in the product of each
+	 * bucket eliminated.
+	 *
+	 * @return
+	 */
+	public Histogram getBucketSizes() {
+		return bucketSizes;
+	}
+
+	/**
+	 * Returns the number of queries computed.
+	 *
+	 * @return
+	 */
+	public long getQueryCount() {
+		return queryNanos.getCount();
+	}
+
+	/**
+	 * Returns the mean query wall time in nanoseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanQueryNanos() {
+		return queryNanos.getMean();
+	}
+
+	/**
+	 * Returns the 99th percentile of query wall times in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getP99QueryNanos() {
+		return queryNanos.getPercentile(99);
+	}
+
+	/**
+	 * Returns the number of buckets eliminated.
+	 *
+	 * @return
+	 */
+	public long getBucketCount() {
+		return bucketNanos.getCount();
+	}
+
+	/**
+	 * Returns the mean bucket elimination wall time in nanoseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanBucketNanos() {
+		return bucketNanos.getMean();
+	}
+
+	/**
+	 * Returns the number of cells in the largest intermediate factor built,
+	 * the product of a bucket, as VE.estimateLargestFactor estimates it.
+	 *
+	 * @return
+	 */
+	public long getMaxFactorSize() {
+		return bucketSizes.getMax();
+	}
+
+	/**
+	 * Returns the number of cells computed by Factor products.
+	 *
+	 * @return
+	 */
+	public long getCellsMultiplied() {
+		return cellsMultiplied.get();
+	}
+
+	/**
+	 * Returns the number of cells read by summing variables out of Factor
+	 * tables.
+	 *
+	 * @return
+	 */
+	public long getCellsSummed() {
+		return cellsSummed.get();
+	}
+
+	/**
+	 * Returns the number of cells allocated for Factor tables.
+	 *
+	 * @return
+	 */
+	public long getCellsAllocated() {
+		return cellsAllocated.get();
+	}
+
+	/**
+	 * Returns the number of Gibbs steps taken.
+	 *
+	 * @return
+	 */
+	public long getGibbsSteps() {
+		return gibbsSteps.get();
+	}
+
+	/**
+	 * Returns the number of Gibbs steps taken per second of chain wall time.
+	 *
+	 * @return
+	 */
+	public double getGibbsStepsPerSecond() {
+		long nanos = gibbsNanos.get();
+		return (nanos == 0) ? 0 : gibbsSteps.get() * 1e9 / nanos;
+	}
+
+	/**
+	 * Returns the fraction of Gibbs steps that changed the sampled value. Low
+	 * rates mean the chains are mixing slowly.
+	 *
+	 * @return
+	 */
+	public double getAcceptanceRate() {
+		long steps = gibbsSteps.get();
+		return (steps == 0) ? 0 : (double) gibbsChanges.get() / steps;
+	}
+
+	/**
+	 * Clears every counter and histogram.
+	 */
+	public void reset() {
+		queryNanos.reset();
+		bucketNanos.reset();
+		factorSizes.reset();
+		bucketSizes.reset();
+		cellsMultiplied.set(0);
+		cellsSummed.set(0);
+		cellsAllocated.set(0);
+		gibbsSteps.set(0);
+		gibbsChanges.set(0);
+		gibbsNanos.set(0);
+	}
+}
@@ -0,0 +1,101 @@
+package util;
+
+/**
+ * The JMX view of InferenceStats.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public interface InferenceStatsMBean {
+
+	/**
+	 * Returns the number of queries computed.
+	 *
+	 * @return
+	 */
+	public long getQueryCount();
+
+	/**
+	 * Returns the mean query wall time in nanoseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanQueryNanos();
+
+	/**
+	 * Returns the 99th percentile of query wall times in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getP99QueryNanos();
+
+	/**
+	 * Returns the number of buckets eliminated.
+	 *
+	 * @return
+	 */
+	public long getBucketCount();
+
+	/**
+	 * Returns the mean bucket elimination wall time in nanoseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanBucketNanos();
+
+	/**
+	 * Returns the number of cells in the largest intermediate factor seen.
+	 *
+	 * @return
+	 */
+	public long getMaxFactorSize();
+
+	/**
+	 * Returns the number of cells computed by Factor products.
+	 *
+	 * @return
+	 */
+	public long getCellsMultiplied();
+
+	/**
+	 * Returns the number of cells read by summing variables out of Factor
+	 * tables.
+	 *
+	 * @return
+	 */
+	public long getCellsSummed();
+
+	/**
+	 * Returns the number of cells allocated for Factor tables.
+	 *
+	 * @return
+	 */
+	public long getCellsAllocated();
+
+	/**
+	 * Returns the number of Gibbs steps taken.
+	 *
+	 * @return
+	 */
+	public long getGibbsSteps();
+
+	/**
+	 * Returns the number of Gibbs steps taken per second of chain wall time.
+	 *
+	 * @return
+	 */
+	public double getGibbsStepsPerSecond();
+
+	/**
+	 * Returns the fraction of Gibbs steps that changed the sampled value.
+	 *
+	 * @return
+	 */
+	public double getAcceptanceRate();
+
+	/**
+	 * Clears every counter and histogram.
+	 */
+	public void reset();
+}
@@ -0,0 +1,265 @@
+package util;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of queries computed by an inference engine, so repeated
+ * queries with the same evidence are answered without recomputing them.
+ *
+ * Results are keyed on the query variable together with the evidence
+ * assignment, independent of the order the evidence was observed in. The
+ * number of cached results is bounded, evicting either the least recently
+ * used result or the oldest result once full. All results are discarded when
+ * the tables of the engine's Bayes net change, or the engine moves to another
+ * Bayes net.
+ *
+ * Like the engines it wraps, a cache holds the evidence for the next query, so
+ * it is for use by one thread at a time.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class QueryCache implements InferenceEngine {
+
+	/**
+	 * Which result to evict when the cache is full.
+	 */
+	public enum EvictionPolicy {
+		/** Evict the result that was least recently looked up. */
+		LRU,
+		/** Evict the result that was computed longest ago. */
+		FIFO;
+	}
+
+	/**
+	 * The canonical encoding of a query as bit masks over the variable
+	 * ordinals.
+	 */
+	static class QueryKey {
+		final int queryMask;
+		final int evidenceMask;
+		final int evidenceValues;
+
+		QueryKey(int queryMask, int evidenceMask, int evidenceValues) {
+			this.queryMask = queryMask;
+			this.evidenceMask = evidenceMask;
+			this.evidenceValues = evidenceValues;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof QueryKey)) {
+				return false;
+			}
+			QueryKey that = (QueryKey) o;
+			return queryMask == that.queryMask
+					&& evidenceMask == that.evidenceMask
+					&& evidenceValues == that.evidenceValues;
+		}
+
+		@Override
+		public int hashCode() {
+			return (queryMask * 31 + evidenceMask) * 31 + evidenceValues;
+		}
+	}
+
+	private final InferenceEngine engine;
+
+	private final LinkedHashMap<QueryKey, Double> results;
+
+	private final EnumMap<VariableType, Boolean> evidence;
+
+	private BayesNet network;
+	private long networkVersion;
+
+	private long hits, misses, evictions;
+
+	/**
+	 * Caches up to maxEntries results of the given engine, evicting the least
+	 * recently used result once full.
+	 *
+	 * @param engine
+	 * @param maxEntries
+	 */
+	public QueryCache(InferenceEngine engine, int maxEntries) {
+		this(engine, maxEntries, EvictionPolicy.LRU);
+	}
+
+	/**
+	 * Caches up to maxEntries results of the given engine, evicting results
+	 * with the given policy once full.
+	 *
+	 * @param engine
+	 * @param maxEntries
+	 * @param policy
+	 */
+	public QueryCache(InferenceEngine engine, final int maxEntries,
+			EvictionPolicy policy) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+
+		this.engine = engine;
+		this.evidence = new EnumMap<VariableType, Boolean>(VariableType.class);
+		this.network = engine.getNetwork();
+		this.networkVersion = network.getVersion();
+
+		boolean accessOrder = policy == EvictionPolicy.LRU;
+		this.results = new LinkedHashMap<QueryKey, Double>(16, 0.75f,
+				accessOrder) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<QueryKey, Double> eldest) {
+				if (size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Sets an observation of a variable for the next query.
+	 *
+	 * @param var
+	 * @param observation
+	 */
+	public void setEvidenceObservation(VariableType var, boolean observation) {
+		evidence.put(var, observation);
+	}
+
+	/**
+	 * Returns the probability of a true assignment to the query variable given
+	 * the evidence observations, computing it with the engine only if it is
+	 * not already cached.
+	 *
+	 * Note: Removes all evidence observations on completion.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public double computeQuery(VariableType var) {
+		QueryKey key = createKey(var);
+		evidence.clear();
+
+		checkNetworkVersion();
+		Double result = results.get(key);
+		if (result != null) {
+			hits++;
+			return result;
+		}
+		misses++;
+
+		engine.resetBayesNet();
+		for (VariableType v : VariableType.values()) {
+			if ((key.evidenceMask & (1 << v.ordinal())) != 0) {
+				engine.setEvidenceObservation(v,
+						(key.evidenceValues & (1 << v.ordinal())) != 0);
+			}
+		}
+		result = engine.computeQuery(var);
+
+		results.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Returns the canonical key for a query of the given variable with the
+	 * current evidence.
+	 *
+	 * @param var
+	 * @return
+	 */
+	private QueryKey createKey(VariableType var) {
+		int evidenceMask = 0;
+		int evidenceValues = 0;
+		for (VariableType v : evidence.keySet()) {
+			evidenceMask |= 1 << v.ordinal();
+			if (evidence.get(v)) {
+				evidenceValues |= 1 << v.ordinal();
+			}
+		}
+		return new QueryKey(1 << var.ordinal(), evidenceMask, evidenceValues);
+	}
+
+	/**
+	 * Discards all cached results if the engine has moved to another Bayes
+	 * net, or the tables of its Bayes net have changed, since they were
+	 * computed.
+	 */
+	private void checkNetworkVersion() {
+		BayesNet current = engine.getNetwork();
+		long version = current.getVersion();
+		if (current != network || version != networkVersion) {
+			results.clear();
+			network = current;
+			networkVersion = version;
+		}
+	}
+
+	/**
+	 * Removes all evidence observations.
+	 */
+	public void resetBayesNet() {
+		evidence.clear();
+		engine.resetBayesNet();
+	}
+
+	/**
+	 * Returns the Bayes net queries are computed against.
+	 *
+	 * @return
+	 */
+	public BayesNet getNetwork() {
+		return engine.getNetwork();
+	}
+
+	/**
+	 * Discards all cached results.
+	 */
+	public void invalidate() {
+		results.clear();
+	}
+
+	/**
+	 * Returns the number of cached results.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the number of queries answered from the cache.
+	 *
+	 * @return
+	 */
+	public long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of queries computed by the engine.
+	 *
+	 * @return
+	 */
+	public long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of results evicted to make room for others.
+	 *
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictions;
+	}
+}
@@ -0,0 +1,761 @@
+package variableElimination;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * The network polynomial of a Bayes Net compiled into an arithmetic circuit: a
+ * flat DAG of additions and multiplications over the conditional
+ * probabilities and an indicator for each value of each variable.
+ *
+ * The circuit is compiled offline by running variable elimination
+ * symbolically, with every multiplication and addition recorded as a node
+ * instead of being computed, and no variables observed. Evidence is applied
+ * afterwards by setting the indicators of values ruled out to 0.
+ *
+ * Evaluating the circuit upwards gives the probability of the evidence, and
+ * differentiating it downwards gives the probability of every value of every
+ * variable together with the evidence, so all posterior marginals are found
+ * in two passes linear in the size of the circuit. Evaluation runs in arrays
+ * allocated once per Evaluator.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class ArithmeticCircuit {
+
+	private static final int MAGIC = 0x424e4143; // "BNAC"
+
+	static final byte INDICATOR = 0;
+	static final byte PARAMETER = 1;
+	static final byte ADD = 2;
+	static final byte MULTIPLY = 3;
+
+	private final byte[] types;
+	private final double[] parameters;
+	private final int[] childStart;
+	private final int[] children;
+
+	// The node of the indicator for each variable ordinal and value, as
+	// ordinal * 2 + value, or -1 if the variable is not in the network.
+	private final int[] indicators;
+
+	// The parameter node of each cell of each variable's table, laid out as
+	// a Factor, indexed by ordinal, or null if the variable is not in the
+	// network.
+	private final int[][] tables;
+
+	// The ordinals of the variables in the order their indicators are first
+	// used, and for each position in that order the first node that depends
+	// on the indicators of any variable from that position on.
+	private final int[] scoringOrder;
+	private final int[] resumeNodes;
+
+	private ArithmeticCircuit(byte[] types, double[] parameters,
+			int[] childStart, int[] children, int[] indicators, int[][] tables) {
+		this.types = types;
+		this.parameters = parameters;
+		this.childStart = childStart;
+		this.children = children;
+		this.indicators = indicators;
+		this.tables = tables;
+
+		// Nodes are in topological order, so no node before the first to use
+		// an indicator depends on it.
+		int numVars = VariableType.values().length;
+		int[] firstUses = new int[numVars];
+		Arrays.fill(firstUses, Integer.MAX_VALUE);
+		int[] indicatorVars = new int[types.length];
+		Arrays.fill(indicatorVars, -1);
+		int inCircuit = 0;
+		for (int v = 0; v < numVars; v++) {
+			if (indicators[v * 2] >= 0) {
+				indicatorVars[indicators[v * 2]] = v;
+				indicatorVars[indicators[v * 2 + 1]] = v;
+				inCircuit++;
+			}
+		}
+		for (int n = 0; n < types.length; n++) {
+			for (int i = childStart[n]; i < childStart[n + 1]; i++) {
+				int var = indicatorVars[children[i]];
+				if (var >= 0) {
+					firstUses[var] = Math.min(firstUses[var], n);
+				}
+			}
+		}
+
+		scoringOrder = new int[inCircuit];
+		int position = 0;
+		for (int v = 0; v < numVars; v++) {
+			if (indicators[v * 2] >= 0) {
+				int i = position++;
+				while (i > 0 && firstUses[scoringOrder[i - 1]] > firstUses[v]) {
+					scoringOrder[i] = scoringOrder[i - 1];
+					i--;
+				}
+				scoringOrder[i] = v;
+			}
+		}
+		resumeNodes = new int[inCircuit + 1];
+		resumeNodes[inCircuit] = types.length;
+		for (int i = inCircuit - 1; i >= 0; i--) {
+			resumeNodes[i] = Math.min(resumeNodes[i + 1],
+					firstUses[scoringOrder[i]]);
+		}
+	}
+
+	/**
+	 * Compiles the circuit for the given Bayes net, eliminating variables in
+	 * the given order. Variables of the network missing from the order are
+	 * eliminated last, in alphabetic order.
+	 *
+	 * @param network
+	 * @param eliminationOrder
+	 * @return
+	 */
+	public static ArithmeticCircuit compile(BayesNet network,
+			VariableType... eliminationOrder) {
+		Builder builder = new Builder();
+
+		List<VariableType> ordering = new ArrayList<VariableType>();
+		for (VariableType var : eliminationOrder) {
+			if (network.getVariables().contains(var) && !ordering.contains(var)) {
+				ordering.add(var);
+			}
+		}
+		for (VariableType var : network.getVariables()) {
+			if (!ordering.contains(var)) {
+				ordering.add(var);
+			}
+		}
+
+		int[] indicators = new int[VariableType.values().length * 2];
+		Arrays.fill(indicators, -1);
+		int[][] tables = new int[VariableType.values().length][];
+
+		// A factor of indicators and a factor of parameters for each variable,
+		// each placed in the bucket of its earliest variable.
+		List<List<SymbolicFactor>> buckets = new ArrayList<List<SymbolicFactor>>();
+		for (int i = 0; i < ordering.size(); i++) {
+			buckets.add(new ArrayList<SymbolicFactor>());
+		}
+		for (VariableType var : network.getVariables()) {
+			int falseNode = builder.addIndicator();
+			int trueNode = builder.addIndicator();
+			indicators[var.ordinal() * 2] = falseNode;
+			indicators[var.ordinal() * 2 + 1] = trueNode;
+			SymbolicFactor indicator = new SymbolicFactor(1 << var.ordinal(),
+					new int[] { falseNode, trueNode });
+
+			Factor table = Factor.createConditionalFactor(var,
+					network.getParents(var), network.getProbabilities(var));
+			int[] cells = new int[table.values.length];
+			for (int i = 0; i < cells.length; i++) {
+				cells[i] = builder.addParameter(table.values[i]);
+			}
+			SymbolicFactor parameters = new SymbolicFactor(
+					table.getVariableMask(), cells);
+			tables[var.ordinal()] = cells;
+
+			buckets.get(earliest(indicator.scope, ordering)).add(indicator);
+			buckets.get(earliest(parameters.scope, ordering)).add(parameters);
+		}
+
+		// Eliminate each bucket symbolically, passing its message on to the
+		// bucket of its earliest remaining variable.
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int b = 0; b < ordering.size(); b++) {
+			List<SymbolicFactor> bucket = buckets.get(b);
+			if (bucket.isEmpty()) {
+				continue;
+			}
+
+			int productMask = 0;
+			for (SymbolicFactor factor : bucket) {
+				productMask |= factor.scope;
+			}
+			int[][] maps = new int[bucket.size()][];
+			for (int i = 0; i < maps.length; i++) {
+				maps[i] = QueryPlan.createIndexMap(productMask,
+						bucket.get(i).scope);
+			}
+
+			int[] product = new int[1 << Integer.bitCount(productMask)];
+			int[] factorNodes = new int[bucket.size()];
+			for (int c = 0; c < product.length; c++) {
+				for (int i = 0; i < factorNodes.length; i++) {
+					factorNodes[i] = bucket.get(i).cells[maps[i][c]];
+				}
+				product[c] = builder.addOperation(MULTIPLY, factorNodes);
+			}
+
+			int messageMask = productMask & ~(1 << ordering.get(b).ordinal());
+			int[] outputs = QueryPlan.createIndexMap(productMask, messageMask);
+			List<List<Integer>> sums = new ArrayList<List<Integer>>();
+			for (int m = 0; m < 1 << Integer.bitCount(messageMask); m++) {
+				sums.add(new ArrayList<Integer>());
+			}
+			for (int c = 0; c < product.length; c++) {
+				sums.get(outputs[c]).add(product[c]);
+			}
+			int[] message = new int[sums.size()];
+			for (int m = 0; m < message.length; m++) {
+				message[m] = builder.addOperation(ADD, toIntArray(sums.get(m)));
+			}
+
+			if (messageMask == 0) {
+				roots.add(message[0]);
+			} else {
+				buckets.get(earliest(messageMask, ordering)).add(
+						new SymbolicFactor(messageMask, message));
+			}
+		}
+
+		int root = builder.addOperation(MULTIPLY, toIntArray(roots));
+		if (root != builder.size() - 1) {
+			// The root must be the last node, so add it again as a sum of
+			// one node.
+			builder.addNode(ADD, new int[] { root }, 0);
+		}
+
+		return builder.build(indicators, tables);
+	}
+
+	/**
+	 * Returns the position in the ordering of the earliest variable of the
+	 * given scope.
+	 *
+	 * @param scope
+	 * @param ordering
+	 * @return
+	 */
+	private static int earliest(int scope, List<VariableType> ordering) {
+		for (int i = 0; i < ordering.size(); i++) {
+			if ((scope & (1 << ordering.get(i).ordinal())) != 0) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Scope has no variables");
+	}
+
+	/**
+	 * Returns the number of nodes in this circuit.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * Returns whether the given variable is in this circuit.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public boolean contains(VariableType var) {
+		return indicators[var.ordinal() * 2] >= 0;
+	}
+
+	/**
+	 * Returns the number of edges in this circuit.
+	 *
+	 * @return
+	 */
+	public int getEdgeCount() {
+		return children.length;
+	}
+
+	/**
+	 * Creates an evaluator for this circuit, with its own working arrays.
+	 * Evaluators are not thread safe, but any number can share a circuit.
+	 *
+	 * @return
+	 */
+	public Evaluator newEvaluator() {
+		return new Evaluator();
+	}
+
+	/**
+	 * Writes this circuit in a compact binary form, to be loaded again with
+	 * readFrom without recompiling.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(types.length);
+		data.writeInt(children.length);
+		data.writeInt(indicators.length);
+		for (int i = 0; i < types.length; i++) {
+			data.writeByte(types[i]);
+			data.writeInt(childStart[i + 1] - childStart[i]);
+			if (types[i] == PARAMETER) {
+				data.writeDouble(parameters[i]);
+			}
+		}
+		for (int child : children) {
+			data.writeInt(child);
+		}
+		for (int indicator : indicators) {
+			data.writeInt(indicator);
+		}
+		data.writeInt(tables.length);
+		for (int[] table : tables) {
+			data.writeInt(table == null ? -1 : table.length);
+			if (table != null) {
+				for (int node : table) {
+					data.writeInt(node);
+				}
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads a circuit written by writeTo.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArithmeticCircuit readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not an arithmetic circuit");
+		}
+
+		int size = data.readInt();
+		byte[] types = new byte[size];
+		double[] parameters = new double[size];
+		int[] childStart = new int[size + 1];
+		int[] children = new int[data.readInt()];
+		int[] indicators = new int[data.readInt()];
+		for (int i = 0; i < size; i++) {
+			types[i] = data.readByte();
+			childStart[i + 1] = childStart[i] + data.readInt();
+			if (types[i] == PARAMETER) {
+				parameters[i] = data.readDouble();
+			}
+		}
+		for (int i = 0; i < children.length; i++) {
+			children[i] = data.readInt();
+		}
+		for (int i = 0; i < indicators.length; i++) {
+			indicators[i] = data.readInt();
+		}
+		int[][] tables = new int[data.readInt()][];
+		for (int v = 0; v < tables.length; v++) {
+			int length = data.readInt();
+			if (length >= 0) {
+				tables[v] = new int[length];
+				for (int i = 0; i < length; i++) {
+					tables[v][i] = data.readInt();
+				}
+			}
+		}
+
+		return new ArithmeticCircuit(types, parameters, childStart, children,
+				indicators, tables);
+	}
+
+	/**
+	 * Evaluates the circuit for some evidence, holding the value and partial
+	 * derivative of every node.
+	 */
+	public class Evaluator {
+
+		private final double[] indicatorValues;
+		private final double[] parameterValues;
+		private final double[] values;
+		private final double[] derivatives;
+
+		// For each multiplication, the product of its non zero children and
+		// the number of zero children, so derivatives don't divide by zero.
+		private final double[] nonZeroProducts;
+		private final int[] zeroCounts;
+
+		private Evaluator() {
+			indicatorValues = new double[indicators.length];
+			parameterValues = parameters.clone();
+			values = new double[types.length];
+			derivatives = new double[types.length];
+			nonZeroProducts = new double[types.length];
+			zeroCounts = new int[types.length];
+			resetEvidence();
+		}
+
+		/**
+		 * Returns the circuit this evaluator evaluates.
+		 *
+		 * @return
+		 */
+		public ArithmeticCircuit getCircuit() {
+			return ArithmeticCircuit.this;
+		}
+
+		/**
+		 * Sets an observation of a variable for the next evaluation.
+		 *
+		 * @param var
+		 * @param observation
+		 */
+		public void setEvidenceObservation(VariableType var, boolean observation) {
+			indicatorValues[var.ordinal() * 2] = observation ? 0 : 1;
+			indicatorValues[var.ordinal() * 2 + 1] = observation ? 1 : 0;
+		}
+
+		/**
+		 * Removes all evidence observations.
+		 */
+		public void resetEvidence() {
+			Arrays.fill(indicatorValues, 1);
+		}
+
+		/**
+		 * Replaces the probabilities this evaluator uses with the current
+		 * tables of the given Bayes net, which must have the structure the
+		 * circuit was compiled from.
+		 *
+		 * @param network
+		 */
+		public void setTables(BayesNet network) {
+			for (VariableType var : network.getVariables()) {
+				int[] nodes = tables[var.ordinal()];
+				double[] values = Factor.createConditionalFactor(var,
+						network.getParents(var), network.getProbabilities(var)).values;
+				if (nodes == null || nodes.length != values.length) {
+					throw new IllegalArgumentException(
+							"Bayes net does not match the circuit at " + var);
+				}
+				for (int i = 0; i < nodes.length; i++) {
+					parameterValues[nodes[i]] = values[i];
+				}
+			}
+		}
+
+		/**
+		 * Evaluates the circuit upwards and differentiates it downwards for
+		 * the current evidence.
+		 */
+		public void evaluate() {
+			for (int v = 0; v < indicators.length; v++) {
+				if (indicators[v] >= 0) {
+					values[indicators[v]] = indicatorValues[v];
+				}
+			}
+
+			evaluateUpwards(0);
+
+			Arrays.fill(derivatives, 0);
+			derivatives[types.length - 1] = 1;
+			for (int n = types.length - 1; n >= 0; n--) {
+				double derivative = derivatives[n];
+				if (derivative == 0) {
+					continue;
+				}
+				switch (types[n]) {
+				case ADD:
+					for (int i = childStart[n]; i < childStart[n + 1]; i++) {
+						derivatives[children[i]] += derivative;
+					}
+					break;
+				case MULTIPLY:
+					for (int i = childStart[n]; i < childStart[n + 1]; i++) {
+						int child = children[i];
+						double value = values[child];
+						if (zeroCounts[n] == 0) {
+							derivatives[child] += derivative
+									* nonZeroProducts[n] / value;
+						} else if (zeroCounts[n] == 1 && value == 0) {
+							derivatives[child] += derivative
+									* nonZeroProducts[n];
+						}
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Evaluates the circuit upwards from the given node, keeping the
+		 * values of the nodes before it.
+		 *
+		 * @param from
+		 */
+		private void evaluateUpwards(int from) {
+			for (int n = from; n < types.length; n++) {
+				switch (types[n]) {
+				case PARAMETER:
+					values[n] = parameterValues[n];
+					break;
+				case ADD:
+					double sum = 0;
+					for (int i = childStart[n]; i < childStart[n + 1]; i++) {
+						sum += values[children[i]];
+					}
+					values[n] = sum;
+					break;
+				case MULTIPLY:
+					double product = 1;
+					int zeros = 0;
+					for (int i = childStart[n]; i < childStart[n + 1]; i++) {
+						double value = values[children[i]];
+						if (value == 0) {
+							zeros++;
+						} else {
+							product *= value;
+						}
+					}
+					nonZeroProducts[n] = product;
+					zeroCounts[n] = zeros;
+					values[n] = (zeros == 0) ? product : 0;
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Returns the probability of the evidence, as of the last evaluation.
+		 *
+		 * @return
+		 */
+		public double getProbabilityOfEvidence() {
+			return values[types.length - 1];
+		}
+
+		/**
+		 * Returns the probability of a true assignment to the given variable
+		 * given the evidence, as of the last evaluation.
+		 *
+		 * @param var
+		 * @return
+		 */
+		public double getMarginal(VariableType var) {
+			int falseNode = indicators[var.ordinal() * 2];
+			int trueNode = indicators[var.ordinal() * 2 + 1];
+			if (falseNode < 0) {
+				throw new IllegalArgumentException(var
+						+ " is not in this circuit");
+			}
+
+			// The derivative for an indicator is the probability of that
+			// value together with the evidence on every other variable.
+			double trueVal = derivatives[trueNode]
+					* indicatorValues[var.ordinal() * 2 + 1];
+			double falseVal = derivatives[falseNode]
+					* indicatorValues[var.ordinal() * 2];
+			return trueVal / (trueVal + falseVal);
+		}
+
+		/**
+		 * Writes the probability of each assignment to the family of the given
+		 * variable given the evidence, as of the last evaluation, laid out as
+		 * the Factor of its conditional probability table.
+		 *
+		 * The circuit is linear in each probability, so its derivative for a
+		 * probability times the probability is the probability of the
+		 * evidence together with that assignment.
+		 *
+		 * @param var
+		 * @param output
+		 */
+		public void getFamilyMarginal(VariableType var, double[] output) {
+			int[] nodes = tables[var.ordinal()];
+			if (nodes == null) {
+				throw new IllegalArgumentException(var
+						+ " is not in this circuit");
+			}
+
+			double evidence = values[types.length - 1];
+			for (int i = 0; i < nodes.length; i++) {
+				output[i] = parameterValues[nodes[i]] * derivatives[nodes[i]]
+						/ evidence;
+			}
+		}
+
+		/**
+		 * Writes the natural log of the probability of the evidence in each
+		 * of the given number of rows of a block of records, given column by
+		 * column: the variable of each column, its value in each row, and
+		 * whether it is missing in each row, or null if it never is. Variables
+		 * without a column are missing. Only the upward pass is made, and the
+		 * evidence of this evaluator is reset afterwards.
+		 *
+		 * Each distinct row is evaluated once, in sorted order with the
+		 * variables whose indicators are used first most significant. A row
+		 * then only evaluates again the nodes from the first that depends on
+		 * a variable whose value differs from the row before, and keeps the
+		 * values below it.
+		 *
+		 * @param columns
+		 * @param columnValues
+		 * @param missing
+		 * @param rows
+		 * @param logProbabilities
+		 */
+		public void computeLogProbabilitiesOfEvidence(VariableType[] columns,
+				boolean[][] columnValues, boolean[][] missing, int rows,
+				double[] logProbabilities) {
+			int numVars = scoringOrder.length;
+
+			// Each row as a key of 2 bits per variable, in scoring order: 0 if
+			// missing, 1 if false and 2 if true.
+			long[] keys = new long[rows];
+			int seen = 0;
+			for (int c = 0; c < columns.length; c++) {
+				int bit = 1 << columns[c].ordinal();
+				if ((seen & bit) != 0) {
+					throw new IllegalArgumentException(columns[c]
+							+ " is given in more than one column");
+				}
+				seen |= bit;
+
+				int position = 0;
+				while (position < numVars
+						&& scoringOrder[position] != columns[c].ordinal()) {
+					position++;
+				}
+				if (position == numVars) {
+					throw new IllegalArgumentException(columns[c]
+							+ " is not in this circuit");
+				}
+
+				int shift = 2 * (numVars - 1 - position);
+				boolean[] column = columnValues[c];
+				boolean[] columnMissing = (missing == null) ? null : missing[c];
+				for (int r = 0; r < rows; r++) {
+					if (columnMissing == null || !columnMissing[r]) {
+						keys[r] |= (column[r] ? 2L : 1L) << shift;
+					}
+				}
+			}
+
+			long[] distinct = Arrays.copyOf(keys, rows);
+			Arrays.sort(distinct);
+			int numDistinct = 0;
+			for (int r = 0; r < rows; r++) {
+				if (numDistinct == 0 || distinct[r] != distinct[numDistinct - 1]) {
+					distinct[numDistinct++] = distinct[r];
+				}
+			}
+
+			double[] distinctLogs = new double[numDistinct];
+			for (int d = 0; d < numDistinct; d++) {
+				// The position of the first variable differing from the row
+				// before.
+				int from = 0;
+				if (d > 0) {
+					from = (Long.numberOfLeadingZeros(distinct[d - 1]
+							^ distinct[d]) - (64 - 2 * numVars)) / 2;
+				}
+				for (int i = from; i < numVars; i++) {
+					int var = scoringOrder[i];
+					int state = (int) (distinct[d] >>> 2 * (numVars - 1 - i)) & 3;
+					values[indicators[var * 2]] = (state == 2) ? 0 : 1;
+					values[indicators[var * 2 + 1]] = (state == 1) ? 0 : 1;
+				}
+
+				evaluateUpwards((d == 0) ? 0 : resumeNodes[from]);
+				distinctLogs[d] = Math.log(values[types.length - 1]);
+			}
+
+			for (int r = 0; r < rows; r++) {
+				logProbabilities[r] = distinctLogs[Arrays.binarySearch(distinct,
+						0, numDistinct, keys[r])];
+			}
+			resetEvidence();
+		}
+	}
+
+	/**
+	 * A factor whose cells are circuit nodes rather than values.
+	 */
+	private static class SymbolicFactor {
+		final int scope;
+		final int[] cells;
+
+		SymbolicFactor(int scope, int[] cells) {
+			this.scope = scope;
+			this.cells = cells;
+		}
+	}
+
+	/**
+	 * Accumulates the nodes of a circuit in topological order.
+	 */
+	private static class Builder {
+		private final List<Byte> types = new ArrayList<Byte>();
+		private final List<Double> parameters = new ArrayList<Double>();
+		private final List<int[]> children = new ArrayList<int[]>();
+
+		int size() {
+			return types.size();
+		}
+
+		int addIndicator() {
+			return addNode(INDICATOR, new int[0], 0);
+		}
+
+		int addParameter(double value) {
+			return addNode(PARAMETER, new int[0], value);
+		}
+
+		/**
+		 * Adds an addition or multiplication of the given nodes, or returns
+		 * the node itself if there is only one.
+		 */
+		int addOperation(byte type, int[] operands) {
+			if (operands.length == 1) {
+				return operands[0];
+			}
+			return addNode(type, operands.clone(), 0);
+		}
+
+		int addNode(byte type, int[] operands, double parameter) {
+			types.add(type);
+			parameters.add(parameter);
+			children.add(operands);
+			return types.size() - 1;
+		}
+
+		ArithmeticCircuit build(int[] indicators, int[][] tables) {
+			int size = types.size();
+			byte[] typeArray = new byte[size];
+			double[] parameterArray = new double[size];
+			int[] childStart = new int[size + 1];
+			for (int n = 0; n < size; n++) {
+				typeArray[n] = types.get(n);
+				parameterArray[n] = parameters.get(n);
+				childStart[n + 1] = childStart[n] + children.get(n).length;
+			}
+			int[] childArray = new int[childStart[size]];
+			for (int n = 0; n < size; n++) {
+				System.arraycopy(children.get(n), 0, childArray, childStart[n],
+						children.get(n).length);
+			}
+			return new ArithmeticCircuit(typeArray, parameterArray,
+					childStart, childArray, indicators, tables);
+		}
+	}
+
+	private static int[] toIntArray(List<Integer> list) {
+		int[] output = new int[list.size()];
+		for (int i = 0; i < output.length; i++) {
+			output[i] = list.get(i);
+		}
+		return output;
+	}
+}
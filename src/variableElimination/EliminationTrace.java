@@ -0,0 +1,242 @@
+package variableElimination;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import util.VariableType;
+
+/**
+ * Records each bucket elimination of recent queries in a fixed size ring
+ * buffer, so slow queries can be looked at after the fact without printing
+ * every Factor table as they run.
+ *
+ * For each elimination it keeps the variable, the scopes of the factors that
+ * were multiplied, the width of the product, its number of cells and the
+ * wall time taken. Once full, the oldest steps are overwritten. The buffer can
+ * be dumped as text, or as a compact binary trace to be read back later.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class EliminationTrace {
+
+	private static final int MAGIC = 0x424e5452; // "BNTR"
+
+	/**
+	 * A single bucket elimination.
+	 */
+	public static class Step {
+		/** Sequence number of the query this step belongs to. */
+		public final long query;
+		/** The variable eliminated. */
+		public final VariableType var;
+		/** Scope of each factor multiplied, as masks of variable ordinals. */
+		public final int[] inputScopes;
+		/** Number of variables in the product. */
+		public final int width;
+		/** Number of cells in the product. */
+		public final int cells;
+		/** Wall time taken to multiply and sum out. */
+		public final long nanos;
+
+		Step(long query, VariableType var, int[] inputScopes, int width,
+				int cells, long nanos) {
+			this.query = query;
+			this.var = var;
+			this.inputScopes = inputScopes;
+			this.width = width;
+			this.cells = cells;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder output = new StringBuilder();
+			output.append(query).append('\t').append(var).append('\t');
+			for (int i = 0; i < inputScopes.length; i++) {
+				output.append(i == 0 ? "" : " ");
+				output.append(scopeToString(inputScopes[i]));
+			}
+			output.append('\t').append(width).append('\t').append(cells)
+					.append('\t').append(nanos).append('\n');
+			return output.toString();
+		}
+	}
+
+	private final Step[] steps;
+
+	private int next;
+	private int size;
+
+	private long queries;
+
+	/**
+	 * Creates a trace that keeps the given number of most recent steps.
+	 *
+	 * @param capacity
+	 */
+	public EliminationTrace(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		steps = new Step[capacity];
+	}
+
+	/**
+	 * Returns the sequence number for a new query.
+	 *
+	 * @return
+	 */
+	synchronized long nextQuery() {
+		return ++queries;
+	}
+
+	/**
+	 * Records a bucket elimination.
+	 *
+	 * @param query
+	 * @param var
+	 * @param inputs
+	 * @param width
+	 * @param cells
+	 * @param nanos
+	 */
+	void record(long query, VariableType var, Collection<Factor> inputs,
+			int width, int cells, long nanos) {
+		int[] inputScopes = new int[inputs.size()];
+		int i = 0;
+		for (Factor factor : inputs) {
+			inputScopes[i++] = factor.getVariableMask();
+		}
+
+		add(new Step(query, var, inputScopes, width, cells, nanos));
+	}
+
+	/**
+	 * Adds a step, overwriting the oldest if full.
+	 *
+	 * @param step
+	 */
+	private synchronized void add(Step step) {
+		steps[next] = step;
+		next = (next + 1) % steps.length;
+		if (size < steps.length) {
+			size++;
+		}
+	}
+
+	/**
+	 * Returns the recorded steps, oldest first.
+	 *
+	 * @return
+	 */
+	public synchronized List<Step> getSteps() {
+		List<Step> output = new ArrayList<Step>(size);
+		int start = (next - size + steps.length) % steps.length;
+		for (int i = 0; i < size; i++) {
+			output.add(steps[(start + i) % steps.length]);
+		}
+		return output;
+	}
+
+	/**
+	 * Discards all recorded steps.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < steps.length; i++) {
+			steps[i] = null;
+		}
+		next = 0;
+		size = 0;
+	}
+
+	/**
+	 * Writes the recorded steps, oldest first, as a binary trace.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		for (Step step : getSteps()) {
+			data.writeLong(step.query);
+			data.writeByte(step.var.ordinal());
+			data.writeByte(step.inputScopes.length);
+			for (int scope : step.inputScopes) {
+				data.writeInt(scope);
+			}
+			data.writeByte(step.width);
+			data.writeInt(step.cells);
+			data.writeLong(step.nanos);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads back the steps of a binary trace written by writeTo.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Step> readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not an elimination trace");
+		}
+
+		List<Step> output = new ArrayList<Step>();
+		while (true) {
+			long query;
+			try {
+				query = data.readLong();
+			} catch (EOFException e) {
+				return output;
+			}
+			VariableType var = VariableType.values()[data.readUnsignedByte()];
+			int[] inputScopes = new int[data.readUnsignedByte()];
+			for (int i = 0; i < inputScopes.length; i++) {
+				inputScopes[i] = data.readInt();
+			}
+			int width = data.readUnsignedByte();
+			int cells = data.readInt();
+			long nanos = data.readLong();
+			output.add(new Step(query, var, inputScopes, width, cells, nanos));
+		}
+	}
+
+	/**
+	 * Returns a scope mask as a list of variables, such as "(B,I,M)".
+	 *
+	 * @param scope
+	 * @return
+	 */
+	private static String scopeToString(int scope) {
+		StringBuilder output = new StringBuilder("(");
+		for (VariableType var : VariableType.values()) {
+			if ((scope & (1 << var.ordinal())) != 0) {
+				output.append(output.length() > 1 ? "," : "").append(var);
+			}
+		}
+		return output.append(')').toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder output = new StringBuilder();
+		output.append("Query\tVar\tInputs\tWidth\tCells\tNanos\n");
+		for (Step step : getSteps()) {
+			output.append(step);
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,517 @@
+package variableElimination;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import util.InferenceMetrics;
+import util.VariableType;
+
+/**
+ * The elimination tree (bucket tree) induced by an elimination ordering.
+ *
+ * Each hidden variable in the ordering gets a bucket holding the factors whose
+ * earliest hidden variable it is. The message produced by eliminating a bucket
+ * is passed to the bucket of the earliest hidden variable left in its scope,
+ * which becomes the parent of that bucket. Buckets on different branches share
+ * no factors, so they can be eliminated independently of each other.
+ *
+ * Messages that contain no hidden variables, and factors that never contained
+ * any, are collected at the root and multiplied together to give the final
+ * factor over the query variable.
+ *
+ * Each bucket also records which conditional probability tables and which
+ * summed out variables make up its subtree, so its message can be looked up
+ * in a MessageCache instead of eliminating the subtree again.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class EliminationTree {
+
+	/**
+	 * A bucket in the elimination tree.
+	 */
+	static class Bucket {
+		final VariableType var;
+		final List<Factor> factors = new ArrayList<Factor>();
+		final List<Bucket> children = new ArrayList<Bucket>();
+		EnumSet<VariableType> scope;
+		int tableMask;
+		int summedOutMask;
+		boolean[] argmax;
+		VariableType[] argmaxVariables;
+
+		Bucket(VariableType var) {
+			this.var = var;
+		}
+	}
+
+	private final List<Bucket> roots = new ArrayList<Bucket>();
+
+	private final List<Factor> rootFactors = new ArrayList<Factor>();
+
+	private boolean debug = false;
+
+	private InferenceMetrics metrics;
+
+	private EliminationTrace trace;
+	private long traceQuery;
+
+	private boolean maximise = false;
+
+	private MessageCache cache;
+	private int evidenceMask, evidenceValues;
+	private long networkVersion;
+
+	/**
+	 * Builds the elimination tree for the given factors, keyed by the variable
+	 * whose conditional probability table they came from. Only variables in
+	 * the hidden set are eliminated, in the order they appear in the
+	 * elimination ordering.
+	 *
+	 * @param factors
+	 * @param eliminationOrdering
+	 * @param hiddenVariables
+	 */
+	EliminationTree(Map<VariableType, Factor> factors,
+			VariableType[] eliminationOrdering,
+			Set<VariableType> hiddenVariables) {
+		build(new ArrayList<Factor>(factors.values()),
+				new ArrayList<VariableType>(factors.keySet()),
+				eliminationOrdering, hiddenVariables);
+	}
+
+	/**
+	 * Builds the elimination tree for factors that did not come from a single
+	 * conditional probability table, such as the messages left by another
+	 * tree. Their messages can't be cached.
+	 *
+	 * @param factors
+	 * @param eliminationOrdering
+	 * @param hiddenVariables
+	 */
+	EliminationTree(List<Factor> factors, VariableType[] eliminationOrdering,
+			Set<VariableType> hiddenVariables) {
+		build(factors, null, eliminationOrdering, hiddenVariables);
+	}
+
+	private void build(List<Factor> factors, List<VariableType> tables,
+			VariableType[] eliminationOrdering,
+			Set<VariableType> hiddenVariables) {
+		EnumMap<VariableType, Bucket> buckets = new EnumMap<VariableType, Bucket>(
+				VariableType.class);
+		List<Bucket> ordered = new ArrayList<Bucket>();
+		for (VariableType var : eliminationOrdering) {
+			if (hiddenVariables.contains(var) && !buckets.containsKey(var)) {
+				Bucket bucket = new Bucket(var);
+				buckets.put(var, bucket);
+				ordered.add(bucket);
+			}
+		}
+
+		// Place each factor in the bucket of its earliest hidden variable.
+		for (int i = 0; i < factors.size(); i++) {
+			Factor factor = factors.get(i);
+			Bucket bucket = earliestBucket(factor.variableSet, ordered);
+			if (bucket == null) {
+				rootFactors.add(factor);
+			} else {
+				bucket.factors.add(factor);
+				if (tables != null) {
+					bucket.tableMask |= 1 << tables.get(i).ordinal();
+				}
+			}
+		}
+
+		// Work out the scope of each message and hang the bucket off the
+		// bucket that will receive it.
+		for (Bucket bucket : ordered) {
+			if (bucket.factors.isEmpty() && bucket.children.isEmpty()) {
+				// Nothing mentions this variable, so there is nothing to do.
+				continue;
+			}
+
+			EnumSet<VariableType> scope = EnumSet.noneOf(VariableType.class);
+			for (Factor factor : bucket.factors) {
+				scope.addAll(factor.variableSet);
+			}
+			bucket.summedOutMask |= 1 << bucket.var.ordinal();
+			for (Bucket child : bucket.children) {
+				scope.addAll(child.scope);
+				bucket.tableMask |= child.tableMask;
+				bucket.summedOutMask |= child.summedOutMask;
+			}
+			scope.remove(bucket.var);
+			bucket.scope = scope;
+
+			Bucket parent = earliestBucket(scope, ordered);
+			if (parent == null) {
+				roots.add(bucket);
+			} else {
+				parent.children.add(bucket);
+			}
+		}
+	}
+
+	/**
+	 * Returns the first bucket in the ordering whose variable is in the given
+	 * set, or null if there is none.
+	 *
+	 * @param vars
+	 * @param ordered
+	 * @return
+	 */
+	private static Bucket earliestBucket(Set<VariableType> vars,
+			List<Bucket> ordered) {
+		for (Bucket bucket : ordered) {
+			if (vars.contains(bucket.var)) {
+				return bucket;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the buckets whose messages go to the root.
+	 *
+	 * @return
+	 */
+	List<Bucket> getRoots() {
+		return roots;
+	}
+
+	/**
+	 * Returns the factors that contain no hidden variables.
+	 *
+	 * @return
+	 */
+	List<Factor> getRootFactors() {
+		return rootFactors;
+	}
+
+	/**
+	 * Turns on console messages for each eliminated bucket.
+	 *
+	 * @param debug
+	 */
+	void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Turns on maximising over the variable of each bucket instead of summing
+	 * it out, keeping the back-pointers so the maximising assignment can be
+	 * decoded afterwards. Each message is scaled to a largest value of 1, which
+	 * doesn't change the maximising assignment but stops long chains of
+	 * products underflowing.
+	 *
+	 * @param maximise
+	 */
+	void setMaximise(boolean maximise) {
+		this.maximise = maximise;
+	}
+
+	/**
+	 * Sets where the time and size of each eliminated bucket is reported.
+	 *
+	 * @param metrics
+	 */
+	void setMetrics(InferenceMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets where each bucket elimination is recorded, under the given query
+	 * sequence number.
+	 *
+	 * @param trace
+	 * @param query
+	 */
+	void setTrace(EliminationTrace trace, long query) {
+		this.trace = trace;
+		this.traceQuery = query;
+	}
+
+	/**
+	 * Looks up and stores bucket messages in the given cache. The evidence is
+	 * given as bit masks over the variable ordinals, and the version is that
+	 * of the Bayes net the factors were built from.
+	 *
+	 * @param cache
+	 * @param evidenceMask
+	 * @param evidenceValues
+	 * @param networkVersion
+	 */
+	void setMessageCache(MessageCache cache, int evidenceMask,
+			int evidenceValues, long networkVersion) {
+		this.cache = cache;
+		this.evidenceMask = evidenceMask;
+		this.evidenceValues = evidenceValues;
+		this.networkVersion = networkVersion;
+	}
+
+	/**
+	 * Eliminates every bucket in turn on the calling thread, returning the
+	 * product of everything left at the root.
+	 *
+	 * @return
+	 */
+	Factor eliminate() {
+		return Factor.pointwiseProduct(new LinkedHashSet<Factor>(
+				eliminateBuckets()));
+	}
+
+	/**
+	 * Eliminates every bucket in turn on the calling thread, returning
+	 * everything left at the root without multiplying it together.
+	 *
+	 * @return
+	 */
+	List<Factor> eliminateBuckets() {
+		List<Factor> remaining = new ArrayList<Factor>(rootFactors);
+		for (Bucket bucket : roots) {
+			remaining.add(eliminate(bucket));
+		}
+		return remaining;
+	}
+
+	/**
+	 * Eliminates independent subtrees concurrently on the given pool,
+	 * returning the product of everything left at the root.
+	 *
+	 * @param pool
+	 * @return
+	 */
+	Factor eliminate(ForkJoinPool pool) {
+		return Factor.pointwiseProduct(new LinkedHashSet<Factor>(
+				eliminateBuckets(pool)));
+	}
+
+	/**
+	 * Eliminates independent subtrees concurrently on the given pool,
+	 * returning everything left at the root without multiplying it together.
+	 *
+	 * @param pool
+	 * @return
+	 */
+	List<Factor> eliminateBuckets(ForkJoinPool pool) {
+		List<Factor> remaining = new ArrayList<Factor>(rootFactors);
+		remaining.addAll(pool.invoke(new SubtreeTask(roots)));
+		return remaining;
+	}
+
+	/**
+	 * Once eliminated with maximising turned on, follows the back-pointers
+	 * from the root down, adding the maximising value of each bucket's
+	 * variable to the given assignment.
+	 *
+	 * @param assignment
+	 */
+	void decode(Map<VariableType, Boolean> assignment) {
+		for (Bucket bucket : roots) {
+			decode(bucket, assignment);
+		}
+	}
+
+	private void decode(Bucket bucket, Map<VariableType, Boolean> assignment) {
+		// Every variable of the message is eliminated later in the ordering,
+		// so has already been assigned.
+		int index = 0;
+		for (int i = 0; i < bucket.argmaxVariables.length; i++) {
+			if (assignment.get(bucket.argmaxVariables[i])) {
+				index |= 1 << i;
+			}
+		}
+		assignment.put(bucket.var, bucket.argmax[index]);
+
+		for (Bucket child : bucket.children) {
+			decode(child, assignment);
+		}
+	}
+
+	/**
+	 * Eliminates the given bucket, after first eliminating all of its
+	 * children.
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	private Factor eliminate(Bucket bucket) {
+		MessageCache.MessageKey key = null;
+		if (cache != null) {
+			key = createKey(bucket);
+			Factor message = cache.get(key);
+			if (message != null) {
+				return message;
+			}
+		}
+
+		LinkedHashSet<Factor> bucketFactors = new LinkedHashSet<Factor>(
+				bucket.factors);
+		for (Bucket child : bucket.children) {
+			bucketFactors.add(eliminate(child));
+		}
+		Factor message = sumOutBucket(bucket, bucketFactors);
+
+		if (cache != null) {
+			cache.put(key, message, networkVersion);
+		}
+		return message;
+	}
+
+	/**
+	 * Returns the message cache key for the given bucket.
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	private MessageCache.MessageKey createKey(Bucket bucket) {
+		return cache.createKey(bucket.tableMask, bucket.summedOutMask,
+				evidenceMask, evidenceValues);
+	}
+
+	/**
+	 * Multiplies together the factors of a bucket and sums out its variable.
+	 *
+	 * @param bucket
+	 * @param bucketFactors
+	 * @return
+	 */
+	private Factor sumOutBucket(Bucket bucket, Set<Factor> bucketFactors) {
+		boolean timed = metrics != null || trace != null;
+		long startTime = timed ? System.nanoTime() : 0;
+
+		Factor factor = Factor.pointwiseProduct(bucketFactors);
+		if (bucketFactors.size() == 1) {
+			// Don't sum out of a factor that may be shared, such as a
+			// cached message.
+			factor = factor.copy();
+		}
+		int width = factor.variables.length;
+		int cells = factor.values.length;
+		if (maximise) {
+			bucket.argmax = factor.maxOut(bucket.var);
+			bucket.argmaxVariables = factor.variables.clone();
+			scaleToMax(factor);
+		} else {
+			factor.sumOut(bucket.var);
+		}
+
+		if (timed) {
+			long nanos = System.nanoTime() - startTime;
+			if (metrics != null) {
+				metrics.bucketEliminated(bucket.var, nanos, cells);
+			}
+			if (trace != null) {
+				trace.record(traceQuery, bucket.var, bucketFactors, width,
+						cells, nanos);
+			}
+		}
+
+		if (debug) {
+			System.out.println("Eliminated " + bucket.var + ":");
+			System.out.println(factor);
+		}
+
+		return factor;
+	}
+
+	/**
+	 * Scales the values of a factor so the largest is 1.
+	 *
+	 * @param factor
+	 */
+	private static void scaleToMax(Factor factor) {
+		double max = 0;
+		for (double value : factor.values) {
+			max = Math.max(max, value);
+		}
+		if (max > 0) {
+			for (int i = 0; i < factor.values.length; i++) {
+				factor.values[i] /= max;
+			}
+		}
+	}
+
+	/**
+	 * Eliminates a list of sibling buckets, forking all but the last so that
+	 * they run concurrently.
+	 */
+	private class SubtreeTask extends RecursiveTask<List<Factor>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Bucket> buckets;
+
+		SubtreeTask(List<Bucket> buckets) {
+			this.buckets = buckets;
+		}
+
+		@Override
+		protected List<Factor> compute() {
+			List<Factor> messages = new ArrayList<Factor>();
+			if (buckets.isEmpty()) {
+				return messages;
+			}
+
+			List<BucketTask> forked = new ArrayList<BucketTask>();
+			for (int i = 0; i < buckets.size() - 1; i++) {
+				BucketTask task = new BucketTask(buckets.get(i));
+				task.fork();
+				forked.add(task);
+			}
+			Factor last = new BucketTask(buckets.get(buckets.size() - 1))
+					.compute();
+
+			for (BucketTask task : forked) {
+				messages.add(task.join());
+			}
+			messages.add(last);
+			return messages;
+		}
+	}
+
+	/**
+	 * Eliminates a single bucket once all of its children are ready.
+	 */
+	private class BucketTask extends RecursiveTask<Factor> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Bucket bucket;
+
+		BucketTask(Bucket bucket) {
+			this.bucket = bucket;
+		}
+
+		@Override
+		protected Factor compute() {
+			MessageCache.MessageKey key = null;
+			if (cache != null) {
+				key = createKey(bucket);
+				Factor message = cache.get(key);
+				if (message != null) {
+					return message;
+				}
+			}
+
+			LinkedHashSet<Factor> bucketFactors = new LinkedHashSet<Factor>(
+					bucket.factors);
+			bucketFactors.addAll(new SubtreeTask(bucket.children).compute());
+			Factor message = sumOutBucket(bucket, bucketFactors);
+
+			if (cache != null) {
+				cache.put(key, message, networkVersion);
+			}
+			return message;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
+import util.InferenceMetrics;
 import util.VariableType;
 
 /**
@@ -17,7 +18,22 @@ import util.VariableType;
  */
 public class Factor {
 
+	// The most variables a factor can hold, as its values are indexed by an
+	// int.
+	static final int MAX_VARIABLES = 30;
+
+	private static volatile InferenceMetrics metrics;
+	private static volatile boolean specialisedKernels;
+
+	// The values may be a view of a larger base table, shared with other
+	// factors, whose indices still hold a bit for each fixed variable.
+	// sliceMask marks those bits and sliceValues holds their fixed values, so
+	// a cell of this factor is at the base index with its bits spread over the
+	// bits outside sliceMask, and sliceValues added. Code reading values
+	// directly must only do so when sliceMask is 0.
 	double[] values;
+	int sliceMask;
+	int sliceValues;
 	VariableType[] variables;
 	HashSet<VariableType> variableSet;
 
@@ -54,6 +70,150 @@ public class Factor {
 		}
 	}
 
+	/**
+	 * Create the Factor for the conditional probability table of a variable
+	 * given its parents, where probabilities holds the probability of the
+	 * variable being true for each assignment to its parents (first parent as
+	 * the most significant bit).
+	 *
+	 * The variables of the Factor are the family of the variable, in
+	 * alphabetic order.
+	 *
+	 * @param var
+	 * @param parents
+	 * @param probabilities
+	 * @return
+	 */
+	public static Factor createConditionalFactor(VariableType var,
+			VariableType[] parents, double[] probabilities) {
+		VariableType[] family = new VariableType[parents.length + 1];
+		int j = 0;
+		for (VariableType parent : parents) {
+			if (parent.compareTo(var) > 0) {
+				break;
+			}
+			family[j++] = parent;
+		}
+		int varIndex = j;
+		family[j++] = var;
+		for (int k = varIndex; k < parents.length; k++) {
+			family[j++] = parents[k];
+		}
+
+		double[] values = new double[1 << family.length];
+		int varBitMask = 1 << (family.length - varIndex - 1);
+		int aboveMask = (0xFFFFFFFF >> family.length - varIndex) << family.length
+				- varIndex;
+		int belowMask = varBitMask - 1;
+		for (int i = 0; i < values.length; i++) {
+			int parentIndex = ((aboveMask & i) >> 1) | (belowMask & i);
+			double prob = probabilities[parentIndex];
+			values[i] = ((i & varBitMask) != 0) ? prob : 1 - prob;
+		}
+
+		return new Factor(values, family);
+	}
+
+	/**
+	 * Sets where all Factor operations report the cells they multiply, sum
+	 * and allocate. Null turns off reporting.
+	 * 
+	 * @param metrics
+	 */
+	public static void setMetrics(InferenceMetrics metrics) {
+		Factor.metrics = metrics;
+	}
+
+	/**
+	 * Turns on running Factor operations through kernels specialised and
+	 * cached per table layout, instead of the generic loops.
+	 */
+	public static void turnOnSpecialisedKernels() {
+		specialisedKernels = true;
+	}
+
+	/**
+	 * Turns off specialised kernels, discarding any already built.
+	 */
+	public static void turnOffSpecialisedKernels() {
+		specialisedKernels = false;
+		FactorKernels.clear();
+	}
+
+	/**
+	 * Returns a copy of this Factor table that can be modified independently.
+	 * 
+	 * @return
+	 */
+	public Factor copy() {
+		VariableType[] vars = variables.clone();
+		reverseArrayInPlace(vars);
+
+		InferenceMetrics m = metrics;
+		if (m != null) {
+			m.factorAllocated(1 << variables.length);
+		}
+
+		double[] copied = (sliceMask == 0) ? values.clone() : gatherValues();
+		return new Factor(copied, vars);
+	}
+
+	/**
+	 * Returns a Factor table over the same values as this one without copying
+	 * them. Fixing variables of the view leaves this table as it is, but the
+	 * values must not be changed in place while either is in use.
+	 * 
+	 * @return
+	 */
+	Factor view() {
+		VariableType[] vars = variables.clone();
+		reverseArrayInPlace(vars);
+
+		Factor view = new Factor(values, vars);
+		view.sliceMask = sliceMask;
+		view.sliceValues = sliceValues;
+		return view;
+	}
+
+	/**
+	 * Returns the value of the cell at the given index of this table.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	double getValue(int index) {
+		return values[toBaseIndex(index)];
+	}
+
+	/**
+	 * Returns the index in the base table of the cell at the given index of
+	 * this table, by opening a gap at the bit of each fixed variable, lowest
+	 * first, and filling the gaps with their values.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private int toBaseIndex(int index) {
+		for (int fixed = sliceMask; fixed != 0; fixed &= fixed - 1) {
+			int belowMask = (fixed & -fixed) - 1;
+			index = ((index & ~belowMask) << 1) | (index & belowMask);
+		}
+		return index | sliceValues;
+	}
+
+	/**
+	 * Returns a new array of the values of the cells of this table.
+	 * 
+	 * @return
+	 */
+	private double[] gatherValues() {
+		double[] output = new double[1 << variables.length];
+		for (int i = 0; i < output.length; i++) {
+			output[i] = getValue(i);
+		}
+		return output;
+	}
+
 	/**
 	 * Returns the array of variable types within this factor table.
 	 * 
@@ -68,10 +228,13 @@ public class Factor {
 	/**
 	 * Return the array of values
 	 * 
+	 * Note: for a view with fixed variables this is a new array gathered from
+	 * the view, leaving the view as it is.
+	 * 
 	 * @return
 	 */
 	public double[] getValues() {
-		return this.values;
+		return (sliceMask == 0) ? this.values : gatherValues();
 	}
 
 	/**
@@ -109,16 +272,34 @@ public class Factor {
 		int thatFactorOverlapMask = getOverlapMask(that.variables,
 				outputVariableSet);
 
-		double[] outputValues = new double[(int) Math.pow(2,
-				outputVariableSet.length)];
+		if (outputVariableSet.length > MAX_VARIABLES) {
+			throw new IllegalArgumentException("Factor over "
+					+ outputVariableSet.length + " variables is too large");
+		}
+		double[] outputValues = new double[1 << outputVariableSet.length];
+
+		InferenceMetrics m = metrics;
+		if (m != null) {
+			m.factorAllocated(outputValues.length);
+			m.factorsMultiplied(outputValues.length);
+		}
+
+		FactorKernels.ProductKernel kernel = specialisedKernels ? FactorKernels
+				.getProductKernel(outputVariableSet.length,
+						thisFactorOverlapMask, thatFactorOverlapMask) : null;
+		if (kernel != null) {
+			kernel.apply(this, that, outputValues);
+			reverseArrayInPlace(outputVariableSet);
+			return new Factor(outputValues, outputVariableSet);
+		}
 
 		for (int i = 0; i < outputValues.length; i++) {
 			int thisFactorIndex = getIndexInOriginalFactor(i,
 					thisFactorOverlapMask);
 			int thatFactorIndex = getIndexInOriginalFactor(i,
 					thatFactorOverlapMask);
-			outputValues[i] = this.values[thisFactorIndex]
-					* that.values[thatFactorIndex];
+			outputValues[i] = this.getValue(thisFactorIndex)
+					* that.getValue(thatFactorIndex);
 		}
 
 		reverseArrayInPlace(outputVariableSet);
@@ -172,6 +353,10 @@ public class Factor {
 			VariableType[] varSet) {
 		int overlapMask = 0;
 
+		if (varSubset.length == 0) {
+			return overlapMask;
+		}
+
 		int j = 0;
 		for (int i = 0; i < varSet.length; i++) {
 			if (varSubset[j].equals(varSet[i])) {
@@ -261,19 +446,50 @@ public class Factor {
 		int varBitMask = 1 << varIndex;
 		int aboveMask = (0xFFFFFFFF >> varIndex + 1) << varIndex + 1;
 		int belowMask = ~((0xFFFFFFFF >> varIndex) << varIndex);
-		double[] newValues = new double[this.values.length / 2];
-		for (i = 0; i < values.length; i++) {
+		int cells = 1 << variables.length;
+		double[] newValues = new double[cells / 2];
+
+		InferenceMetrics m = metrics;
+		if (m != null) {
+			m.factorAllocated(newValues.length);
+			m.variableSummedOut(cells);
+		}
+
+		FactorKernels.ReductionKernel kernel = specialisedKernels ? FactorKernels
+				.getReductionKernel(variables.length, varIndex) : null;
+		if (kernel != null) {
+			kernel.sumOut(this, newValues);
+			setValues(newValues, vars, var);
+			return;
+		}
+
+		for (i = 0; i < cells; i++) {
 			if ((i & varBitMask) == 0) { // variable is false
-				double oneProb = values[i]; // false variable prob
-				double twoProb = values[i | varBitMask]; // true variable prob
+				double oneProb = getValue(i); // false variable prob
+				double twoProb = getValue(i | varBitMask); // true variable prob
 				int newIndex = ((aboveMask & i) >> 1) | (belowMask & i);
 				newValues[newIndex] = oneProb + twoProb;
 			}
 		}
 
+		setValues(newValues, vars, var);
+	}
+
+	/**
+	 * Replaces the values of this table with a new array of its own, after
+	 * removing the given variable.
+	 * 
+	 * @param newValues
+	 * @param vars
+	 * @param removed
+	 */
+	private void setValues(double[] newValues, VariableType[] vars,
+			VariableType removed) {
 		this.values = newValues;
+		this.sliceMask = 0;
+		this.sliceValues = 0;
 		this.variables = vars;
-		this.variableSet.remove(var);
+		this.variableSet.remove(removed);
 	}
 
 	/**
@@ -304,12 +520,70 @@ public class Factor {
 	}
 
 	/**
-	 * Fix a value for a variable for this Factor table.
-	 * 
+	 * Given some variable type, maximise over that variable within the factor
+	 * table, keeping the larger of its false and true values for each
+	 * assignment to the other variables.
+	 *
+	 * Returns the back-pointers: for each cell of the new table, whether the
+	 * variable was true in the larger value. Returns null if the variable is
+	 * not in this factor.
+	 *
 	 * @param var
-	 * @param value
+	 * @return
 	 */
-	public void fixVariable(VariableType var, boolean value) {
+	public boolean[] maxOut(VariableType var) {
+		if (!contains(var)) {
+			return null;
+		}
+
+		int i = 0;
+		int varIndex = -1;
+		VariableType[] vars = new VariableType[variables.length - 1];
+		for (VariableType v : variables) {
+			if (!v.equals(var) && i < variables.length - 1) {
+				vars[i] = v;
+				i++;
+			} else if (v.equals(var)) {
+				varIndex = i;
+			}
+		}
+
+		int varBitMask = 1 << varIndex;
+		int aboveMask = (0xFFFFFFFF >> varIndex + 1) << varIndex + 1;
+		int belowMask = ~((0xFFFFFFFF >> varIndex) << varIndex);
+		int cells = 1 << variables.length;
+		double[] newValues = new double[cells / 2];
+		boolean[] argmax = new boolean[newValues.length];
+
+		InferenceMetrics m = metrics;
+		if (m != null) {
+			m.factorAllocated(newValues.length);
+			m.variableSummedOut(cells);
+		}
+
+		for (i = 0; i < cells; i++) {
+			if ((i & varBitMask) == 0) { // variable is false
+				double falseProb = getValue(i);
+				double trueProb = getValue(i | varBitMask);
+				int newIndex = ((aboveMask & i) >> 1) | (belowMask & i);
+				argmax[newIndex] = trueProb > falseProb;
+				newValues[newIndex] = Math.max(falseProb, trueProb);
+			}
+		}
+
+		setValues(newValues, vars, var);
+
+		return argmax;
+	}
+
+	/**
+	 * Given some variable type, minimise over that variable within the factor
+	 * table, keeping the smaller of its false and true values for each
+	 * assignment to the other variables.
+	 *
+	 * @param var
+	 */
+	public void minOut(VariableType var) {
 		if (!contains(var)) {
 			return;
 		}
@@ -329,20 +603,59 @@ public class Factor {
 		int varBitMask = 1 << varIndex;
 		int aboveMask = (0xFFFFFFFF >> varIndex + 1) << varIndex + 1;
 		int belowMask = ~((0xFFFFFFFF >> varIndex) << varIndex);
-		double[] newValues = new double[this.values.length / 2];
-		for (i = 0; i < values.length; i++) {
+		int cells = 1 << variables.length;
+		double[] newValues = new double[cells / 2];
+
+		InferenceMetrics m = metrics;
+		if (m != null) {
+			m.factorAllocated(newValues.length);
+			m.variableSummedOut(cells);
+		}
+
+		for (i = 0; i < cells; i++) {
 			if ((i & varBitMask) == 0) { // variable is false
 				int newIndex = ((aboveMask & i) >> 1) | (belowMask & i);
-				if (!value) {
-					newValues[newIndex] = values[i]; // var is true
-				} else {
-					newValues[newIndex] = values[i | varBitMask]; // var is
-																	// false
-				}
+				newValues[newIndex] = Math.min(getValue(i),
+						getValue(i | varBitMask));
 			}
 		}
 
-		this.values = newValues;
+		setValues(newValues, vars, var);
+	}
+
+	/**
+	 * Fix a value for a variable for this Factor table.
+	 * 
+	 * The values aren't copied: this table becomes a view of the cells of its
+	 * values with the variable at the fixed value.
+	 * 
+	 * @param var
+	 * @param value
+	 */
+	public void fixVariable(VariableType var, boolean value) {
+		if (!contains(var)) {
+			return;
+		}
+
+		int i = 0;
+		int varIndex = -1;
+		VariableType[] vars = new VariableType[variables.length - 1];
+		for (VariableType v : variables) {
+			if (!v.equals(var) && i < variables.length - 1) {
+				vars[i] = v;
+				i++;
+			} else if (v.equals(var)) {
+				varIndex = i;
+			}
+		}
+
+		// The bit of the variable in the indices of the base table.
+		int baseBitMask = toBaseIndex(1 << varIndex) & ~sliceMask;
+		sliceMask |= baseBitMask;
+		if (value) {
+			sliceValues |= baseBitMask;
+		}
+
 		this.variables = vars;
 		this.variableSet.remove(var);
 	}
@@ -359,7 +672,7 @@ public class Factor {
 			System.out.println("Wrong number of variable assignments");
 			return -1;
 		}
-		return values[getIndex(variableValues)];
+		return getValue(getIndex(variableValues));
 	}
 
 	/**
@@ -391,6 +704,19 @@ public class Factor {
 		return this.variableSet.contains(var);
 	}
 	
+	/**
+	 * Returns the variables of this factor as a bit mask of their ordinals.
+	 * 
+	 * @return
+	 */
+	int getVariableMask() {
+		int mask = 0;
+		for (VariableType v : variables) {
+			mask |= 1 << v.ordinal();
+		}
+		return mask;
+	}
+
 	/**
 	 * Returns true if this factor has no free variables.
 	 * 
@@ -410,12 +736,12 @@ public class Factor {
 
 		output.append("Phi\n");
 
-		for (int i = 0; i < values.length; i++) {
+		for (int i = 0; i < 1 << variables.length; i++) {
 			int mask = 1 << variables.length - 1;
 			for (int j = 0; j < variables.length; j++) {
 				output.append((i & (mask >> j)) > 0 ? "T\t" : "F\t");
 			}
-			output.append(String.format("%.4f\n", values[i]));
+			output.append(String.format("%.4f\n", getValue(i)));
 		}
 
 		return output.toString();
@@ -0,0 +1,159 @@
+package variableElimination;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Specialised kernels for the Factor operations, cached per scope signature.
+ *
+ * The generic Factor loops work out which cells of the inputs line up with
+ * each output cell from bit masks as they go, for every cell of every
+ * operation. Queries keep meeting the same few layouts though, so a kernel
+ * works the cell indices out once for a layout and keeps them as flat index
+ * maps, leaving loops that only load, multiply or add and store.
+ *
+ * Kernels are only built for tables of up to MAX_WIDTH variables, larger
+ * tables take the generic path.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class FactorKernels {
+
+	/** Widest table, in variables, that kernels are built for. */
+	static final int MAX_WIDTH = 12;
+
+	private static final ConcurrentHashMap<Long, ProductKernel> products = new ConcurrentHashMap<Long, ProductKernel>();
+	private static final ConcurrentHashMap<Integer, ReductionKernel> reductions = new ConcurrentHashMap<Integer, ReductionKernel>();
+
+	/**
+	 * Multiplies two tables into a table over the union of their variables.
+	 */
+	static final class ProductKernel {
+		private final int[] thisIndex;
+		private final int[] thatIndex;
+
+		private ProductKernel(int width, int thisMask, int thatMask) {
+			thisIndex = new int[1 << width];
+			thatIndex = new int[1 << width];
+			for (int i = 0; i < thisIndex.length; i++) {
+				thisIndex[i] = Factor.getIndexInOriginalFactor(i, thisMask);
+				thatIndex[i] = Factor.getIndexInOriginalFactor(i, thatMask);
+			}
+		}
+
+		void apply(Factor thisFactor, Factor thatFactor, double[] output) {
+			int[] a = thisIndex;
+			int[] b = thatIndex;
+			if (thisFactor.sliceMask != 0 || thatFactor.sliceMask != 0) {
+				for (int i = 0; i < output.length; i++) {
+					output[i] = thisFactor.getValue(a[i])
+							* thatFactor.getValue(b[i]);
+				}
+				return;
+			}
+
+			double[] thisValues = thisFactor.values;
+			double[] thatValues = thatFactor.values;
+			for (int i = 0; i < output.length; i++) {
+				output[i] = thisValues[a[i]] * thatValues[b[i]];
+			}
+		}
+	}
+
+	/**
+	 * Removes one variable of a table by summing over it.
+	 */
+	static final class ReductionKernel {
+		private final int[] falseIndex;
+		private final int varBitMask;
+
+		private ReductionKernel(int width, int varIndex) {
+			varBitMask = 1 << varIndex;
+			int belowMask = varBitMask - 1;
+			falseIndex = new int[1 << (width - 1)];
+			for (int j = 0; j < falseIndex.length; j++) {
+				falseIndex[j] = ((j & ~belowMask) << 1) | (j & belowMask);
+			}
+		}
+
+		void sumOut(Factor factor, double[] output) {
+			int[] f = falseIndex;
+			int bit = varBitMask;
+			if (factor.sliceMask != 0) {
+				for (int j = 0; j < output.length; j++) {
+					output[j] = factor.getValue(f[j])
+							+ factor.getValue(f[j] | bit);
+				}
+				return;
+			}
+
+			double[] values = factor.values;
+			for (int j = 0; j < output.length; j++) {
+				output[j] = values[f[j]] + values[f[j] | bit];
+			}
+		}
+	}
+
+	/**
+	 * Returns the product kernel for an output table of the given width, with
+	 * the variables of each input at the given bits of an output index, or
+	 * null if the output is too wide.
+	 *
+	 * @param width
+	 * @param thisMask
+	 * @param thatMask
+	 * @return
+	 */
+	static ProductKernel getProductKernel(int width, int thisMask, int thatMask) {
+		if (width > MAX_WIDTH) {
+			return null;
+		}
+
+		Long key = Long.valueOf(((long) width << 48)
+				| ((long) thisMask << MAX_WIDTH * 2)
+				| ((long) thatMask << MAX_WIDTH));
+		ProductKernel kernel = products.get(key);
+		if (kernel == null) {
+			kernel = new ProductKernel(width, thisMask, thatMask);
+			ProductKernel existing = products.putIfAbsent(key, kernel);
+			if (existing != null) {
+				kernel = existing;
+			}
+		}
+		return kernel;
+	}
+
+	/**
+	 * Returns the reduction kernel removing the variable at the given bit of a
+	 * table of the given width, or null if the table is too wide.
+	 *
+	 * @param width
+	 * @param varIndex
+	 * @return
+	 */
+	static ReductionKernel getReductionKernel(int width, int varIndex) {
+		if (width > MAX_WIDTH) {
+			return null;
+		}
+
+		Integer key = Integer.valueOf(width << 8 | varIndex);
+		ReductionKernel kernel = reductions.get(key);
+		if (kernel == null) {
+			kernel = new ReductionKernel(width, varIndex);
+			ReductionKernel existing = reductions.putIfAbsent(key, kernel);
+			if (existing != null) {
+				kernel = existing;
+			}
+		}
+		return kernel;
+	}
+
+	/**
+	 * Discards all cached kernels.
+	 */
+	static void clear() {
+		products.clear();
+		reductions.clear();
+	}
+}
@@ -0,0 +1,202 @@
+package variableElimination;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * Caches the messages produced by eliminating buckets, so later queries can
+ * reuse any subtree of the elimination tree that is unaffected by what
+ * changed between the queries.
+ *
+ * The message of a bucket is the product of the conditional probability
+ * tables in its subtree, with the evidence fixed and the subtree's variables
+ * summed out. It is keyed on exactly those: the tables, the variables summed
+ * out, and the evidence on variables appearing in those tables. Evidence
+ * elsewhere in the network doesn't change the message, so doesn't stop it
+ * being reused. Messages are evicted least recently used first, and all are
+ * discarded when the tables of the Bayes net change.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class MessageCache {
+
+	/**
+	 * The key for a message, as bit masks over the variable ordinals.
+	 */
+	static class MessageKey {
+		final int tableMask;
+		final int summedOutMask;
+		final int evidenceMask;
+		final int evidenceValues;
+
+		MessageKey(int tableMask, int summedOutMask, int evidenceMask,
+				int evidenceValues) {
+			this.tableMask = tableMask;
+			this.summedOutMask = summedOutMask;
+			this.evidenceMask = evidenceMask;
+			this.evidenceValues = evidenceValues;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof MessageKey)) {
+				return false;
+			}
+			MessageKey that = (MessageKey) o;
+			return tableMask == that.tableMask
+					&& summedOutMask == that.summedOutMask
+					&& evidenceMask == that.evidenceMask
+					&& evidenceValues == that.evidenceValues;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((tableMask * 31 + summedOutMask) * 31 + evidenceMask) * 31
+					+ evidenceValues;
+		}
+	}
+
+	private final BayesNet network;
+
+	private final LinkedHashMap<MessageKey, Factor> messages;
+
+	private long networkVersion;
+
+	private long hits, misses;
+
+	/**
+	 * Caches up to maxEntries messages computed from the given Bayes net.
+	 *
+	 * @param network
+	 * @param maxEntries
+	 */
+	public MessageCache(BayesNet network, final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+
+		this.network = network;
+		this.networkVersion = network.getVersion();
+		this.messages = new LinkedHashMap<MessageKey, Factor>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<MessageKey, Factor> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the key for the message of a subtree holding the given tables
+	 * and summing out the given variables, under the given evidence.
+	 *
+	 * @param tableMask
+	 * @param summedOutMask
+	 * @param evidenceMask
+	 * @param evidenceValues
+	 * @return
+	 */
+	MessageKey createKey(int tableMask, int summedOutMask, int evidenceMask,
+			int evidenceValues) {
+		// Only evidence on variables in the tables can change the message.
+		int scopeMask = 0;
+		for (VariableType var : VariableType.values()) {
+			if ((tableMask & (1 << var.ordinal())) != 0) {
+				scopeMask |= 1 << var.ordinal();
+				for (VariableType parent : network.getParents(var)) {
+					scopeMask |= 1 << parent.ordinal();
+				}
+			}
+		}
+		evidenceMask &= scopeMask;
+		return new MessageKey(tableMask, summedOutMask, evidenceMask,
+				evidenceValues & evidenceMask);
+	}
+
+	/**
+	 * Returns the cached message for the given key, or null if there is none.
+	 *
+	 * The returned Factor is shared, and must not be modified.
+	 *
+	 * @param key
+	 * @return
+	 */
+	synchronized Factor get(MessageKey key) {
+		checkNetworkVersion();
+		Factor message = messages.get(key);
+		if (message == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return message;
+	}
+
+	/**
+	 * Caches a message computed from the tables of the given version of the
+	 * Bayes net.
+	 *
+	 * @param key
+	 * @param message
+	 * @param version
+	 */
+	synchronized void put(MessageKey key, Factor message, long version) {
+		checkNetworkVersion();
+		if (version == networkVersion) {
+			messages.put(key, message);
+		}
+	}
+
+	/**
+	 * Discards all cached messages if the tables of the Bayes net have changed
+	 * since they were computed.
+	 */
+	private void checkNetworkVersion() {
+		long version = network.getVersion();
+		if (version != networkVersion) {
+			messages.clear();
+			networkVersion = version;
+		}
+	}
+
+	/**
+	 * Discards all cached messages.
+	 */
+	public synchronized void invalidate() {
+		messages.clear();
+	}
+
+	/**
+	 * Returns the number of cached messages.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Returns the number of buckets answered from the cache.
+	 *
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of buckets that had to be eliminated.
+	 *
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+}
@@ -0,0 +1,131 @@
+package variableElimination;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import util.VariableType;
+
+/**
+ * Mini-bucket elimination: approximate bucket elimination that bounds the
+ * width of every factor it builds.
+ *
+ * The bucket of each variable is split into mini-buckets whose factors
+ * together hold at most the width bound of variables. The variable is summed
+ * out of the product of one mini-bucket, and maximised out of the product of
+ * each of the others for an upper bound on the sum, or minimised out for a
+ * lower bound, since the sum over a variable of a product is at most the
+ * product of the sum of one factor and the maxima of the rest, and at least
+ * that with the minima. A factor wider than the bound on its own gets a
+ * mini-bucket to itself.
+ *
+ * With a width bound of at least the induced width of the ordering plus one,
+ * every bucket fits in one mini-bucket and both bounds are exact. Lower
+ * bounds make factors smaller and faster, and the bounds looser.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class MiniBucket {
+
+	private MiniBucket() {
+	}
+
+	/**
+	 * Returns a bound on the sum over the given variables of the product of
+	 * the given factors, eliminating them in the given order with mini-buckets
+	 * of at most the given width. The factors must hold no other variables.
+	 *
+	 * @param factors
+	 * @param ordering
+	 * @param width
+	 * @param upper
+	 *            true for an upper bound, false for a lower bound
+	 * @return
+	 */
+	static double bound(List<Factor> factors, List<VariableType> ordering,
+			int width, boolean upper) {
+		List<Factor> remaining = new ArrayList<Factor>(factors);
+
+		for (VariableType var : ordering) {
+			List<Factor> bucket = new ArrayList<Factor>();
+			Iterator<Factor> iter = remaining.iterator();
+			while (iter.hasNext()) {
+				Factor factor = iter.next();
+				if (factor.contains(var)) {
+					bucket.add(factor);
+					iter.remove();
+				}
+			}
+			if (bucket.isEmpty()) {
+				continue;
+			}
+
+			List<LinkedHashSet<Factor>> miniBuckets = partition(bucket, width);
+			for (int i = 0; i < miniBuckets.size(); i++) {
+				LinkedHashSet<Factor> miniBucket = miniBuckets.get(i);
+				Factor factor = Factor.pointwiseProduct(miniBucket);
+				if (miniBucket.size() == 1) {
+					// Don't eliminate from a factor that may be shared, such
+					// as a view of a conditional probability table.
+					factor = factor.copy();
+				}
+
+				if (i == 0) {
+					factor.sumOut(var);
+				} else if (upper) {
+					factor.maxOut(var);
+				} else {
+					factor.minOut(var);
+				}
+				remaining.add(factor);
+			}
+		}
+
+		// Only factors without variables are left.
+		double result = 1;
+		for (Factor factor : remaining) {
+			result *= factor.getProbability();
+		}
+		return result;
+	}
+
+	/**
+	 * Splits a bucket into mini-buckets of at most the given width, placing
+	 * the widest factors first, each in the first mini-bucket it fits in.
+	 *
+	 * @param bucket
+	 * @param width
+	 * @return
+	 */
+	private static List<LinkedHashSet<Factor>> partition(List<Factor> bucket,
+			int width) {
+		Collections.sort(bucket, new Comparator<Factor>() {
+			public int compare(Factor a, Factor b) {
+				return b.getVariables().length - a.getVariables().length;
+			}
+		});
+
+		List<LinkedHashSet<Factor>> miniBuckets = new ArrayList<LinkedHashSet<Factor>>();
+		List<Integer> scopes = new ArrayList<Integer>();
+		for (Factor factor : bucket) {
+			int scope = factor.getVariableMask();
+			int i = 0;
+			while (i < miniBuckets.size()
+					&& Integer.bitCount(scopes.get(i) | scope) > width) {
+				i++;
+			}
+			if (i == miniBuckets.size()) {
+				miniBuckets.add(new LinkedHashSet<Factor>());
+				scopes.add(0);
+			}
+			miniBuckets.get(i).add(factor);
+			scopes.set(i, scopes.get(i) | scope);
+		}
+		return miniBuckets;
+	}
+}
@@ -0,0 +1,169 @@
+package variableElimination;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * A handle on the latest version of a model: a Bayes Net that never changes
+ * once published, with the arithmetic circuit compiled from it.
+ *
+ * Publishing a new version copies the tables given, so later changes to them
+ * aren't seen, and swaps the new model in atomically. Queries read the current
+ * model without locking and keep using it to the end, however many versions
+ * are published meanwhile. When a new version only changes the numbers in the
+ * tables, its model shares the compiled circuit of the previous one, and
+ * evaluators move over to it by reloading the tables rather than being
+ * created again.
+ *
+ * Publishers are serialised, so a version is always built on the one before.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+public class ModelHandle {
+
+	private final VariableType[] eliminationOrder;
+	private final AtomicReference<Model> current;
+
+	/**
+	 * Creates a handle publishing a copy of the given Bayes net as the first
+	 * version, compiled with the given elimination order.
+	 *
+	 * @param network
+	 * @param eliminationOrder
+	 */
+	public ModelHandle(BayesNet network, VariableType... eliminationOrder) {
+		this.eliminationOrder = eliminationOrder.clone();
+		BayesNet copy = network.copy();
+		current = new AtomicReference<Model>(new Model(1, copy,
+				ArithmeticCircuit.compile(copy, this.eliminationOrder)));
+	}
+
+	/**
+	 * Returns the latest model.
+	 *
+	 * @return
+	 */
+	public Model getModel() {
+		return current.get();
+	}
+
+	/**
+	 * Publishes a copy of the given Bayes net as the next version, returning
+	 * its model. The circuit is compiled again only if the structure changed.
+	 *
+	 * @param network
+	 * @return
+	 */
+	public synchronized Model publish(BayesNet network) {
+		Model previous = current.get();
+		BayesNet copy = network.copy();
+		ArithmeticCircuit circuit = copy.hasSameStructure(previous.network) ? previous.circuit
+				: ArithmeticCircuit.compile(copy, eliminationOrder);
+
+		Model model = new Model(previous.version + 1, copy, circuit);
+		current.set(model);
+		return model;
+	}
+
+	/**
+	 * Publishes the next version with the probabilities of one variable
+	 * replaced, returning its model.
+	 *
+	 * @param var
+	 * @param probabilities
+	 * @return
+	 */
+	public synchronized Model publish(VariableType var, double... probabilities) {
+		BayesNet network = current.get().network.copy();
+		network.setConditionalProbabilities(var, probabilities);
+		return publish(network);
+	}
+
+	/**
+	 * One version of the model.
+	 */
+	public static class Model {
+
+		private final long version;
+		private final BayesNet network;
+		private final ArithmeticCircuit circuit;
+
+		private Model(long version, BayesNet network, ArithmeticCircuit circuit) {
+			this.version = version;
+			this.network = network;
+			this.circuit = circuit;
+		}
+
+		/**
+		 * Returns the version of this model, starting from 1.
+		 *
+		 * @return
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns a copy of the Bayes net of this model.
+		 *
+		 * @return
+		 */
+		public BayesNet getNetwork() {
+			return network.copy();
+		}
+
+		/**
+		 * Returns the circuit compiled for this model. It may be shared with
+		 * other versions of the same structure, so evaluators need the tables
+		 * of this version loaded, as newEvaluator and updateEvaluator do.
+		 *
+		 * @return
+		 */
+		public ArithmeticCircuit getCircuit() {
+			return circuit;
+		}
+
+		/**
+		 * Creates an evaluator with the tables of this model.
+		 *
+		 * @return
+		 */
+		public ArithmeticCircuit.Evaluator newEvaluator() {
+			ArithmeticCircuit.Evaluator evaluator = circuit.newEvaluator();
+			evaluator.setTables(network);
+			return evaluator;
+		}
+
+		/**
+		 * Returns the given evaluator with the tables of this model loaded if
+		 * it evaluates the circuit of this model, otherwise a new evaluator.
+		 *
+		 * @param evaluator
+		 * @return
+		 */
+		public ArithmeticCircuit.Evaluator updateEvaluator(
+				ArithmeticCircuit.Evaluator evaluator) {
+			if (evaluator == null || evaluator.getCircuit() != circuit) {
+				return newEvaluator();
+			}
+			evaluator.setTables(network);
+			return evaluator;
+		}
+
+		/**
+		 * Creates a VE for this model with the given elimination ordering,
+		 * over a copy of its Bayes net so changes through the VE leave the
+		 * model as published.
+		 *
+		 * @param eliminationOrder
+		 * @return
+		 */
+		public VE newVE(VariableType... eliminationOrder) {
+			return new VE(network.copy(), eliminationOrder);
+		}
+	}
+}
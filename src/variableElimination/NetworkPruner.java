@@ -0,0 +1,109 @@
+package variableElimination;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * Works out which conditional probability tables of a Bayes net can affect a
+ * query, so the rest can be left out of the elimination entirely.
+ *
+ * Barren nodes, variables that are neither queried, observed nor an ancestor
+ * of one that is, marginalise to 1 and are removed first. Then, with the edges
+ * leaving observed variables removed, anything not connected to the query is
+ * d-separated from it by the evidence and only contributes a constant, which
+ * normalisation removes anyway.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class NetworkPruner {
+
+	/**
+	 * Returns the variables whose tables are relevant to a query of the given
+	 * variables given the observed variables.
+	 *
+	 * @param network
+	 * @param query
+	 * @param evidence
+	 * @return
+	 */
+	static EnumSet<VariableType> getRelevantVariables(BayesNet network,
+			Set<VariableType> query, Set<VariableType> evidence) {
+		EnumSet<VariableType> ancestral = removeBarrenNodes(network, query,
+				evidence);
+		return removeIndependentVariables(network, ancestral, query, evidence);
+	}
+
+	/**
+	 * Returns the query and evidence variables together with all of their
+	 * ancestors. Every other variable is barren.
+	 *
+	 * @param network
+	 * @param query
+	 * @param evidence
+	 * @return
+	 */
+	static EnumSet<VariableType> removeBarrenNodes(BayesNet network,
+			Set<VariableType> query, Set<VariableType> evidence) {
+		EnumSet<VariableType> ancestral = EnumSet.noneOf(VariableType.class);
+		Deque<VariableType> toVisit = new ArrayDeque<VariableType>();
+		toVisit.addAll(query);
+		toVisit.addAll(evidence);
+
+		while (!toVisit.isEmpty()) {
+			VariableType var = toVisit.pop();
+			if (ancestral.add(var)) {
+				for (VariableType parent : network.getParents(var)) {
+					toVisit.push(parent);
+				}
+			}
+		}
+
+		return ancestral;
+	}
+
+	/**
+	 * Returns the variables of the given set that are still connected to a
+	 * query variable once the edges leaving evidence variables are removed.
+	 *
+	 * @param network
+	 * @param variables
+	 * @param query
+	 * @param evidence
+	 * @return
+	 */
+	static EnumSet<VariableType> removeIndependentVariables(BayesNet network,
+			Set<VariableType> variables, Set<VariableType> query,
+			Set<VariableType> evidence) {
+		EnumSet<VariableType> connected = EnumSet.noneOf(VariableType.class);
+		Deque<VariableType> toVisit = new ArrayDeque<VariableType>(query);
+
+		while (!toVisit.isEmpty()) {
+			VariableType var = toVisit.pop();
+			if (!variables.contains(var) || !connected.add(var)) {
+				continue;
+			}
+
+			// Edges into a variable are always kept, edges out of it only if
+			// it is not observed.
+			for (VariableType parent : network.getParents(var)) {
+				if (!evidence.contains(parent)) {
+					toVisit.push(parent);
+				}
+			}
+			if (!evidence.contains(var)) {
+				for (VariableType child : network.getChildren(var)) {
+					toVisit.push(child);
+				}
+			}
+		}
+
+		return connected;
+	}
+}
@@ -0,0 +1,345 @@
+package variableElimination;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import util.BayesNet;
+import util.VariableType;
+
+/**
+ * Variable elimination for one query variable and one set of observed
+ * variables, compiled down to flat index maps so that running a query does no
+ * structural work at all.
+ *
+ * Compiling prunes the network, builds the elimination tree and works out,
+ * for every bucket, which cell of each input is multiplied into each cell of
+ * the product and which cell of the message each product cell is summed
+ * into. Running the plan then only moves numbers through those maps, reading
+ * the conditional probability tables directly with the observed values
+ * selected by an offset. Products are never stored, each cell is summed
+ * straight into the message.
+ *
+ * Every buffer uses the same layout as a Factor: for a scope given as a mask
+ * of variable ordinals, the bit of a variable within a cell index is the
+ * number of variables in the scope that come after it.
+ *
+ * @author Craig Sketchley
+ * @author Rohan Brooker
+ *
+ */
+class QueryPlan {
+
+	private final int[] tableVars;
+	private final int[][] reducedIndex;
+	private final int[][] evidenceVars;
+	private final int[][] evidenceShifts;
+
+	private final int[][] stepInputs;
+	private final int[][][] stepMaps;
+	private final int[][] stepOutputs;
+	private final int[] stepSizes;
+
+	private final int[] rootInputs;
+	private final int[][] rootMaps;
+
+	private QueryPlan(List<Integer> tableVars, List<int[]> reducedIndex,
+			List<int[]> evidenceVars, List<int[]> evidenceShifts,
+			List<int[]> stepInputs, List<int[][]> stepMaps,
+			List<int[]> stepOutputs, List<Integer> stepSizes,
+			int[] rootInputs, int[][] rootMaps) {
+		this.tableVars = toIntArray(tableVars);
+		this.reducedIndex = reducedIndex.toArray(new int[0][]);
+		this.evidenceVars = evidenceVars.toArray(new int[0][]);
+		this.evidenceShifts = evidenceShifts.toArray(new int[0][]);
+		this.stepInputs = stepInputs.toArray(new int[0][]);
+		this.stepMaps = stepMaps.toArray(new int[0][][]);
+		this.stepOutputs = stepOutputs.toArray(new int[0][]);
+		this.stepSizes = toIntArray(stepSizes);
+		this.rootInputs = rootInputs;
+		this.rootMaps = rootMaps;
+	}
+
+	/**
+	 * Compiles the plan for a query of the given variable when the variables
+	 * in the evidence mask are observed.
+	 *
+	 * @param network
+	 * @param eliminationOrdering
+	 * @param queryVariable
+	 * @param evidenceMask
+	 * @return
+	 */
+	static QueryPlan compile(BayesNet network,
+			VariableType[] eliminationOrdering, VariableType queryVariable,
+			int evidenceMask) {
+		EnumSet<VariableType> evidence = toVariables(evidenceMask);
+		EnumSet<VariableType> relevant = NetworkPruner.getRelevantVariables(
+				network, EnumSet.of(queryVariable), evidence);
+
+		List<Integer> tableVars = new ArrayList<Integer>();
+		List<int[]> reducedIndex = new ArrayList<int[]>();
+		List<int[]> evidenceVars = new ArrayList<int[]>();
+		List<int[]> evidenceShifts = new ArrayList<int[]>();
+
+		// Stand in factors with the scope of each table once the evidence is
+		// fixed, to build the elimination tree from.
+		LinkedHashMap<VariableType, Factor> factors = new LinkedHashMap<VariableType, Factor>();
+		IdentityHashMap<Factor, Integer> buffers = new IdentityHashMap<Factor, Integer>();
+		for (VariableType var : network.getVariables()) {
+			if (!relevant.contains(var)) {
+				continue;
+			}
+
+			int familyMask = 1 << var.ordinal();
+			for (VariableType parent : network.getParents(var)) {
+				familyMask |= 1 << parent.ordinal();
+			}
+			int reducedMask = familyMask & ~evidenceMask;
+			if (reducedMask == 0) {
+				// Only a constant, which normalisation removes.
+				continue;
+			}
+
+			int observedMask = familyMask & evidenceMask;
+			int[] observed = new int[Integer.bitCount(observedMask)];
+			int[] shifts = new int[observed.length];
+			int i = 0;
+			for (VariableType v : toVariables(observedMask)) {
+				observed[i] = v.ordinal();
+				shifts[i] = bitPosition(familyMask, v);
+				i++;
+			}
+
+			Factor factor = new Factor(new double[0], toArray(reducedMask));
+			buffers.put(factor, tableVars.size());
+			factors.put(var, factor);
+
+			tableVars.add(var.ordinal());
+			reducedIndex.add(createIndexMap(reducedMask, familyMask));
+			evidenceVars.add(observed);
+			evidenceShifts.add(shifts);
+		}
+
+		EnumSet<VariableType> hiddenVariables = EnumSet
+				.noneOf(VariableType.class);
+		hiddenVariables.addAll(network.getVariables());
+		hiddenVariables.removeAll(evidence);
+		hiddenVariables.remove(queryVariable);
+		EliminationTree tree = new EliminationTree(factors,
+				eliminationOrdering, hiddenVariables);
+
+		List<int[]> stepInputs = new ArrayList<int[]>();
+		List<int[][]> stepMaps = new ArrayList<int[][]>();
+		List<int[]> stepOutputs = new ArrayList<int[]>();
+		List<Integer> stepSizes = new ArrayList<Integer>();
+
+		List<Integer> rootBuffers = new ArrayList<Integer>();
+		List<Integer> rootScopes = new ArrayList<Integer>();
+		for (Factor factor : tree.getRootFactors()) {
+			rootBuffers.add(buffers.get(factor));
+			rootScopes.add(factor.getVariableMask());
+		}
+		int[] messageScope = new int[1];
+		for (EliminationTree.Bucket bucket : tree.getRoots()) {
+			rootBuffers.add(compileBucket(bucket, buffers, tableVars.size(),
+					stepInputs, stepMaps, stepOutputs, stepSizes, messageScope));
+			rootScopes.add(messageScope[0]);
+		}
+
+		int queryMask = 1 << queryVariable.ordinal();
+		int[][] rootMaps = new int[rootBuffers.size()][];
+		for (int i = 0; i < rootMaps.length; i++) {
+			rootMaps[i] = createIndexMap(queryMask, rootScopes.get(i));
+		}
+
+		return new QueryPlan(tableVars, reducedIndex, evidenceVars,
+				evidenceShifts, stepInputs, stepMaps, stepOutputs, stepSizes,
+				toIntArray(rootBuffers), rootMaps);
+	}
+
+	/**
+	 * Compiles the steps for a bucket, after those of its children, returning
+	 * the buffer its message is written to. The scope of the message is
+	 * returned in the first element of messageScope.
+	 *
+	 * @return
+	 */
+	private static int compileBucket(EliminationTree.Bucket bucket,
+			IdentityHashMap<Factor, Integer> buffers, int numTables,
+			List<int[]> stepInputs, List<int[][]> stepMaps,
+			List<int[]> stepOutputs, List<Integer> stepSizes,
+			int[] messageScope) {
+		List<Integer> inputs = new ArrayList<Integer>();
+		List<Integer> scopes = new ArrayList<Integer>();
+		for (Factor factor : bucket.factors) {
+			inputs.add(buffers.get(factor));
+			scopes.add(factor.getVariableMask());
+		}
+		for (EliminationTree.Bucket child : bucket.children) {
+			inputs.add(compileBucket(child, buffers, numTables, stepInputs,
+					stepMaps, stepOutputs, stepSizes, messageScope));
+			scopes.add(messageScope[0]);
+		}
+
+		int productMask = 0;
+		for (int scope : scopes) {
+			productMask |= scope;
+		}
+		int messageMask = productMask & ~(1 << bucket.var.ordinal());
+
+		int[][] maps = new int[inputs.size()][];
+		for (int i = 0; i < maps.length; i++) {
+			maps[i] = createIndexMap(productMask, scopes.get(i));
+		}
+
+		stepInputs.add(toIntArray(inputs));
+		stepMaps.add(maps);
+		stepOutputs.add(createIndexMap(productMask, messageMask));
+		stepSizes.add(1 << Integer.bitCount(messageMask));
+
+		messageScope[0] = messageMask;
+		return numTables + stepSizes.size() - 1;
+	}
+
+	/**
+	 * Returns the values of the Factor for every conditional probability table
+	 * of the Bayes net, indexed by variable ordinal.
+	 *
+	 * @param network
+	 * @return
+	 */
+	static double[][] createTableValues(BayesNet network) {
+		double[][] tableValues = new double[VariableType.values().length][];
+		for (VariableType var : network.getVariables()) {
+			tableValues[var.ordinal()] = Factor.createConditionalFactor(var,
+					network.getParents(var), network.getProbabilities(var)).values;
+		}
+		return tableValues;
+	}
+
+	/**
+	 * Runs the plan on the given table values, with the observed variables
+	 * that are true given as a mask of their ordinals. Returns the
+	 * unnormalised false and true values of the query variable.
+	 *
+	 * @param tableValues
+	 * @param evidenceValues
+	 * @return
+	 */
+	double[] execute(double[][] tableValues, int evidenceValues) {
+		double[][] buffers = new double[tableVars.length + stepSizes.length][];
+
+		for (int t = 0; t < tableVars.length; t++) {
+			int offset = 0;
+			for (int i = 0; i < evidenceVars[t].length; i++) {
+				offset |= ((evidenceValues >> evidenceVars[t][i]) & 1) << evidenceShifts[t][i];
+			}
+
+			double[] full = tableValues[tableVars[t]];
+			int[] index = reducedIndex[t];
+			double[] reduced = new double[index.length];
+			for (int i = 0; i < index.length; i++) {
+				reduced[i] = full[index[i] | offset];
+			}
+			buffers[t] = reduced;
+		}
+
+		for (int s = 0; s < stepSizes.length; s++) {
+			int[] inputs = stepInputs[s];
+			int[][] maps = stepMaps[s];
+			int[] outputs = stepOutputs[s];
+			double[] message = new double[stepSizes[s]];
+			for (int c = 0; c < outputs.length; c++) {
+				double value = 1;
+				for (int i = 0; i < inputs.length; i++) {
+					value *= buffers[inputs[i]][maps[i][c]];
+				}
+				message[outputs[c]] += value;
+			}
+			buffers[tableVars.length + s] = message;
+		}
+
+		double[] result = new double[2];
+		for (int c = 0; c < result.length; c++) {
+			double value = 1;
+			for (int i = 0; i < rootInputs.length; i++) {
+				value *= buffers[rootInputs[i]][rootMaps[i][c]];
+			}
+			result[c] = value;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns, for each cell of a buffer over the first scope, the cell of a
+	 * buffer over the second scope holding the same assignment to the
+	 * variables they share.
+	 *
+	 * @param fromMask
+	 * @param toMask
+	 * @return
+	 */
+	static int[] createIndexMap(int fromMask, int toMask) {
+		int[] map = new int[1 << Integer.bitCount(fromMask)];
+		for (int c = 0; c < map.length; c++) {
+			int index = 0;
+			for (VariableType var : toVariables(fromMask & toMask)) {
+				int bit = (c >> bitPosition(fromMask, var)) & 1;
+				index |= bit << bitPosition(toMask, var);
+			}
+			map[c] = index;
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the bit of the given variable within a cell index of a buffer
+	 * over the given scope.
+	 *
+	 * @param scopeMask
+	 * @param var
+	 * @return
+	 */
+	static int bitPosition(int scopeMask, VariableType var) {
+		return Integer.bitCount(scopeMask & (-1 << var.ordinal() + 1));
+	}
+
+	/**
+	 * Returns the variables in a mask of ordinals.
+	 *
+	 * @param mask
+	 * @return
+	 */
+	static EnumSet<VariableType> toVariables(int mask) {
+		EnumSet<VariableType> vars = EnumSet.noneOf(VariableType.class);
+		for (VariableType var : VariableType.values()) {
+			if ((mask & (1 << var.ordinal())) != 0) {
+				vars.add(var);
+			}
+		}
+		return vars;
+	}
+
+	/**
+	 * Returns the variables in a mask of ordinals as an array in alphabetic
+	 * order, as given to the Factor constructor.
+	 *
+	 * @param mask
+	 * @return
+	 */
+	private static VariableType[] toArray(int mask) {
+		EnumSet<VariableType> vars = toVariables(mask);
+		return vars.toArray(new VariableType[vars.size()]);
+	}
+
+	private static int[] toIntArray(List<Integer> list) {
+		int[] output = new int[list.size()];
+		for (int i = 0; i < output.length; i++) {
+			output[i] = list.get(i);
+		}
+		return output;
+	}
+}
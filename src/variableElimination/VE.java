@@ -1,8 +1,20 @@
 package variableElimination;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
-
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import util.BayesNet;
+import util.InferenceEngine;
+import util.InferenceMetrics;
 import util.VariableType;
 
 /**
@@ -12,18 +24,36 @@ import util.VariableType;
  * @author Rohan Brooker
  * 
  */
-public class VE {
+public class VE implements InferenceEngine {
 
-	private Factor PhiB, PhiC, PhiI, PhiM, PhiS;
+	private BayesNet network;
 
 	private VariableType[] eliminationOrdering;
 
-	private LinkedHashSet<VariableType> hiddenVariables;
-
-	private LinkedHashSet<Factor> factors;
+	private EnumMap<VariableType, Boolean> evidence;
 	
 	private boolean DEBUG = false;
 
+	private ForkJoinPool pool;
+
+	private MessageCache messageCache;
+	private int messageCacheSize;
+
+	private InferenceMetrics metrics;
+
+	private EliminationTrace trace;
+
+	private long memoryBudget = Long.MAX_VALUE;
+
+	private boolean compiledPlans = false;
+	private HashMap<Long, QueryPlan> plans;
+	private long plansStructureVersion;
+	private double[][] tableValues;
+	private long tableValuesVersion;
+
+	private EnumMap<VariableType, Factor> conditionalFactors;
+	private long conditionalFactorsVersion;
+
 	/**
 	 * Creates a Bayes net for the specific example with an elimination
 	 * ordering.
@@ -31,7 +61,19 @@ public class VE {
 	 * @param eliminationOrder
 	 */
 	public VE(VariableType... eliminationOrder) {
+		this(BayesNet.createExampleBayesNet(), eliminationOrder);
+	}
+
+	/**
+	 * Creates a VE for the given Bayes net with an elimination ordering.
+	 * 
+	 * @param network
+	 * @param eliminationOrder
+	 */
+	public VE(BayesNet network, VariableType... eliminationOrder) {
 		// TODO: Validate the elimination ordering.
+		this.network = network;
+		this.plans = new HashMap<Long, QueryPlan>();
 		setEliminationOrdering(eliminationOrder);
 		resetBayesNet();
 	}
@@ -41,61 +83,7 @@ public class VE {
 	 * observations.
 	 */
 	public void resetBayesNet() {
-		PhiB = new Factor(new double[] {
-				// B, M
-				0.95, // false, false
-				0.8, // false, true
-				0.05, // true, false
-				0.2 // true, true
-				}, VariableType.B, VariableType.M);
-
-		PhiC = new Factor(new double[] {
-				// B, C, I
-				0.95, // false, false, false
-				0.2, // false, false, true
-				0.05, // false, true, false
-				0.8, // false, true, true
-				0.2, // true, false, false
-				0.2, // true, false, true
-				0.8, // true, true, false
-				0.8 // true, true, true
-				}, VariableType.B, VariableType.C, VariableType.I);
-
-		PhiI = new Factor(new double[] {
-				// I, M
-				0.8, // false, false
-				0.2, // false, true
-				0.2, // true, false
-				0.8 // true, true
-				}, VariableType.I, VariableType.M);
-
-		PhiM = new Factor(new double[] {
-				// M
-				0.8, // false
-				0.2 // true
-				}, VariableType.M);
-
-		PhiS = new Factor(new double[] {
-				// B, S
-				0.4, // false, false
-				0.6, // false, true
-				0.2, // true, false
-				0.8 // true, true
-				}, VariableType.B, VariableType.S);
-
-		factors = new LinkedHashSet<Factor>();
-		factors.add(PhiB);
-		factors.add(PhiC);
-		factors.add(PhiI);
-		factors.add(PhiM);
-		factors.add(PhiS);
-
-		hiddenVariables = new LinkedHashSet<VariableType>();
-		hiddenVariables.add(VariableType.B);
-		hiddenVariables.add(VariableType.C);
-		hiddenVariables.add(VariableType.I);
-		hiddenVariables.add(VariableType.M);
-		hiddenVariables.add(VariableType.S);
+		evidence = new EnumMap<VariableType, Boolean>(VariableType.class);
 	}
 
 	/**
@@ -107,59 +95,23 @@ public class VE {
 	 * 
 	 */
 	public void setupExampleBayesNet() {
-		PhiB = new Factor(new double[] {
-				// B(
-				0.999, // false
-				0.001 // true
-				}, VariableType.B);
-
-		PhiC = new Factor(new double[] {
-				// B(B), C(A), I(E)
-				0.999, // false, false, false
-				0.71, // false, false, true
-				0.001, // false, true, false
-				0.29, // false, true, true
-				0.06, // true, false, false
-				0.05, // true, false, true
-				0.94, // true, true, false
-				0.95 // true, true, true
-				}, VariableType.B, VariableType.C, VariableType.I);
-
-		PhiI = new Factor(new double[] {
-				// I(E)
-				0.998, // false
-				0.002, // true
-		}, VariableType.I);
-
-		PhiM = new Factor(new double[] {
-				// C(A), M(M)
-				0.99, // false, false
-				0.01, // false, true
-				0.30, // true, false
-				0.70 // true, true
-				}, VariableType.C, VariableType.M);
-
-		PhiS = new Factor(new double[] {
-				// C(A), S(J)
-				0.95, // false, false
-				0.05, // false, true
-				0.10, // true, false
-				0.90 // true, true
-				}, VariableType.C, VariableType.S);
-
-		factors = new LinkedHashSet<Factor>();
-		factors.add(PhiB);
-		factors.add(PhiC);
-		factors.add(PhiI);
-		factors.add(PhiM);
-		factors.add(PhiS);
-
-		hiddenVariables = new LinkedHashSet<VariableType>();
-		hiddenVariables.add(VariableType.B);
-		hiddenVariables.add(VariableType.C);
-		hiddenVariables.add(VariableType.I);
-		hiddenVariables.add(VariableType.M);
-		hiddenVariables.add(VariableType.S);
+		network = BayesNet.createTextbookBayesNet();
+		if (messageCache != null) {
+			messageCache = new MessageCache(network, messageCacheSize);
+		}
+		plans.clear();
+		tableValues = null;
+		conditionalFactors = null;
+		resetBayesNet();
+	}
+
+	/**
+	 * Returns the Bayes net queries are computed against.
+	 * 
+	 * @return
+	 */
+	public BayesNet getNetwork() {
+		return network;
 	}
 
 	/**
@@ -171,6 +123,123 @@ public class VE {
 		// TODO: Check for correct number of variables
 		// TODO: Check for unique variables.
 		this.eliminationOrdering = eliminationOrder;
+		plans.clear();
+	}
+
+	/**
+	 * Sets the number of threads used to eliminate independent branches of the
+	 * elimination tree concurrently. A parallelism of 1 or less eliminates
+	 * every bucket on the calling thread.
+	 * 
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Sets the number of bucket messages kept to be reused by later queries
+	 * that share part of the elimination tree. A size of 0 or less turns off
+	 * the message cache.
+	 * 
+	 * @param maxEntries
+	 */
+	public void setMessageCacheSize(int maxEntries) {
+		messageCacheSize = maxEntries;
+		messageCache = (maxEntries > 0) ? new MessageCache(network, maxEntries)
+				: null;
+	}
+
+	/**
+	 * Sets the largest number of cells of any factor a query may build. A
+	 * query whose elimination ordering would build a larger factor is
+	 * eliminated in an ordering picked to keep factors small instead, and
+	 * throws an IllegalArgumentException if that is still too large.
+	 * 
+	 * @param cells
+	 */
+	public void setMemoryBudget(long cells) {
+		if (cells < 1) {
+			throw new IllegalArgumentException("Memory budget must be positive");
+		}
+		memoryBudget = cells;
+	}
+
+	/**
+	 * Returns the number of cells of the largest factor eliminating the
+	 * hidden variables would build for the given query variables, with the
+	 * current evidence, in the elimination ordering.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	public long estimateLargestFactor(VariableType... queryVariables) {
+		EnumSet<VariableType> query = EnumSet.noneOf(VariableType.class);
+		query.addAll(Arrays.asList(queryVariables));
+		return estimateLargestFactor(getFactorScopes(query),
+				eliminationOrdering, getHiddenVariables(query));
+	}
+
+	/**
+	 * Returns the message cache, or null if it is turned off.
+	 * 
+	 * @return
+	 */
+	public MessageCache getMessageCache() {
+		return messageCache;
+	}
+
+	/**
+	 * Sets where the time taken by each query and each bucket elimination is
+	 * reported. Null turns off reporting.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(InferenceMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets where each bucket elimination is recorded, for profiling queries
+	 * after the fact. Null turns off tracing.
+	 * 
+	 * @param trace
+	 */
+	public void setTrace(EliminationTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Turns on compiling each combination of query variable and observed
+	 * variables into a query plan the first time it is seen, and running the
+	 * plan for later queries. Plans run on the calling thread and don't use
+	 * the message cache, trace or debug output.
+	 */
+	public void turnOnCompiledPlans() {
+		compiledPlans = true;
+	}
+
+	/**
+	 * Turns off compiled query plans, discarding any already compiled.
+	 */
+	public void turnOffCompiledPlans() {
+		compiledPlans = false;
+		plans.clear();
+	}
+
+	/**
+	 * Compiles the Bayes Net into an arithmetic circuit using the elimination
+	 * ordering, for answering every marginal at once under changing evidence.
+	 * The circuit keeps the probabilities of the network at the time it is
+	 * compiled.
+	 *
+	 * @return
+	 */
+	public ArithmeticCircuit compileCircuit() {
+		return ArithmeticCircuit.compile(network, eliminationOrdering);
 	}
 
 	/**
@@ -184,108 +253,690 @@ public class VE {
 	 * @return
 	 */
 	public double computeQuery(VariableType queryVariable) {
-		hiddenVariables.remove(queryVariable);
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+
+		// A plan follows the elimination ordering, so one over budget is
+		// eliminated in another ordering instead.
+		EnumSet<VariableType> query = EnumSet.of(queryVariable);
+		VariableType[] ordering = chooseOrdering(query,
+				getHiddenVariables(query));
+		boolean withinBudget = ordering == eliminationOrdering;
+		double[] result = (compiledPlans && withinBudget) ? executePlan(queryVariable)
+				: eliminate(queryVariable, ordering);
+
+		// Normalise the final probability.
+		double falseVal = result[0];
+		double trueVal = result[1];
+		double sum = trueVal + falseVal;
+
+		// Reset ready for another query if necessary
+		resetBayesNet();
+
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+
+		return trueVal / sum;
+	}
+
+	/**
+	 * Returns lower and upper bounds on the probability of a true assignment
+	 * to the query variable given any evidence assignments, by mini-bucket
+	 * elimination with no factor built over more than the given number of
+	 * variables. The bounds meet at the exact probability once the width
+	 * reaches the induced width of the elimination ordering plus one, and
+	 * narrower widths trade accuracy for memory and time.
+	 * 
+	 * Note: Resets this Bayes Net on completion, as computeQuery does.
+	 * 
+	 * @param queryVariable
+	 * @param width
+	 * @return the lower and upper bound
+	 */
+	public double[] computeQueryBounds(VariableType queryVariable, int width) {
+		if (width < 1) {
+			throw new IllegalArgumentException(
+					"Mini-bucket width must be at least 1");
+		}
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+
+		double[] bounds;
+		if (evidence.containsKey(queryVariable)) {
+			double value = evidence.get(queryVariable) ? 1 : 0;
+			bounds = new double[] { value, value };
+		} else {
+			EnumSet<VariableType> query = EnumSet.of(queryVariable);
+			LinkedHashMap<VariableType, Factor> factors = createFactors();
+			factors.keySet().retainAll(
+					NetworkPruner.getRelevantVariables(network, query,
+							evidence.keySet()));
+
+			// Hidden variables missing from the ordering are eliminated last.
+			EnumSet<VariableType> hidden = getHiddenVariables(query);
+			List<VariableType> ordering = new ArrayList<VariableType>();
+			for (VariableType var : eliminationOrdering) {
+				if (hidden.remove(var)) {
+					ordering.add(var);
+				}
+			}
+			ordering.addAll(hidden);
+
+			// Bound the probability of the evidence with each value of the
+			// query variable.
+			double[] lower = new double[2];
+			double[] upper = new double[2];
+			for (int value = 0; value < 2; value++) {
+				List<Factor> fixed = new ArrayList<Factor>();
+				for (Factor factor : factors.values()) {
+					Factor view = factor.view();
+					view.fixVariable(queryVariable, value == 1);
+					fixed.add(view);
+				}
+				lower[value] = MiniBucket.bound(fixed, ordering, width, false);
+				upper[value] = MiniBucket.bound(fixed, ordering, width, true);
+			}
+
+			double lowerSum = lower[1] + upper[0];
+			double upperSum = upper[1] + lower[0];
+			bounds = new double[] { (lowerSum > 0) ? lower[1] / lowerSum : 0,
+					(upperSum > 0) ? upper[1] / upperSum : 1 };
+		}
+
+		resetBayesNet();
+
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Returns the joint distribution of the query variables given any evidence
+	 * assignments, as a Factor over the query variables in alphabetic order
+	 * whose values sum to 1.
+	 * 
+	 * Note: Resets this Bayes Net on completion, as computeQuery does.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	public Factor computeJointQuery(VariableType... queryVariables) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+
+		EnumSet<VariableType> query = EnumSet.noneOf(VariableType.class);
+		for (VariableType var : queryVariables) {
+			if (evidence.containsKey(var)) {
+				throw new IllegalArgumentException(var + " is observed");
+			}
+			query.add(var);
+		}
+
+		// Copied, as a lone message at the root may be held by the cache.
+		Factor factor = eliminate(query).copy();
+		normalise(factor);
+
+		resetBayesNet();
+
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+
+		return factor;
+	}
+
+	/**
+	 * Returns the distribution of each of the query variables given any
+	 * evidence assignments, as a Factor over that variable whose values sum to
+	 * 1. Observed variables put all their probability on the observed value.
+	 * 
+	 * The eliminations share a message cache, so parts of the elimination
+	 * tree common to several of the variables are only eliminated once.
+	 * 
+	 * Note: Resets this Bayes Net on completion, as computeQuery does.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	public Map<VariableType, Factor> computeMarginals(
+			VariableType... queryVariables) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+
+		MessageCache sharedCache = messageCache;
+		if (messageCache == null) {
+			messageCache = new MessageCache(network, network.getVariables()
+					.size() * queryVariables.length);
+		}
+
+		EnumMap<VariableType, Factor> marginals = new EnumMap<VariableType, Factor>(
+				VariableType.class);
+		try {
+			for (VariableType var : queryVariables) {
+				Factor factor;
+				if (evidence.containsKey(var)) {
+					boolean observed = evidence.get(var);
+					factor = new Factor(new double[] { observed ? 0 : 1,
+							observed ? 1 : 0 }, var);
+				} else {
+					factor = eliminate(EnumSet.of(var)).copy();
+					normalise(factor);
+				}
+				marginals.put(var, factor);
+			}
+		} finally {
+			messageCache = sharedCache;
+		}
+
+		resetBayesNet();
+
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+
+		return marginals;
+	}
+
+	/**
+	 * Scales the values of a factor to sum to 1.
+	 * 
+	 * @param factor
+	 */
+	private static void normalise(Factor factor) {
+		double sum = 0;
+		for (double value : factor.values) {
+			sum += value;
+		}
+		for (int i = 0; i < factor.values.length; i++) {
+			factor.values[i] /= sum;
+		}
+	}
+
+	/**
+	 * Returns the most probable explanation: the most probable assignment to
+	 * every unobserved variable given the evidence.
+	 *
+	 * Note: Resets this Bayes Net on completion, as computeQuery does.
+	 *
+	 * @return
+	 */
+	public Map<VariableType, Boolean> computeMPE() {
+		EnumSet<VariableType> mapVariables = EnumSet
+				.noneOf(VariableType.class);
+		mapVariables.addAll(network.getVariables());
+		mapVariables.removeAll(evidence.keySet());
+		return computeMAP(mapVariables.toArray(new VariableType[mapVariables
+				.size()]));
+	}
+
+	/**
+	 * Returns the maximum a posteriori assignment to the given variables: the
+	 * most probable assignment to them given the evidence, with every other
+	 * unobserved variable summed out.
+	 *
+	 * The other variables are summed out first, through the same elimination
+	 * tree, message cache and workers as computeQuery. Then the given
+	 * variables are maximised out in the elimination ordering, keeping
+	 * back-pointers, and the assignment is read back from the last variable
+	 * maximised to the first.
+	 *
+	 * Note: Resets this Bayes Net on completion, as computeQuery does.
+	 *
+	 * @param mapVariables
+	 * @return
+	 */
+	public Map<VariableType, Boolean> computeMAP(VariableType... mapVariables) {
+		long startTime = (metrics == null) ? 0 : System.nanoTime();
+		long networkVersion = network.getVersion();
+
+		EnumSet<VariableType> query = EnumSet.noneOf(VariableType.class);
+		for (VariableType var : mapVariables) {
+			if (evidence.containsKey(var)) {
+				throw new IllegalArgumentException(var + " is observed");
+			}
+			query.add(var);
+		}
+
+		LinkedHashMap<VariableType, Factor> factors = createFactors();
+		factors.keySet().retainAll(
+				NetworkPruner.getRelevantVariables(network, query,
+						evidence.keySet()));
+
+		// Sum out everything that is neither observed nor wanted.
+		EnumSet<VariableType> summed = EnumSet.noneOf(VariableType.class);
+		summed.addAll(network.getVariables());
+		summed.removeAll(evidence.keySet());
+		summed.removeAll(query);
+		EliminationTree sumTree = new EliminationTree(factors,
+				chooseOrdering(query, summed), summed);
+		sumTree.setDebug(DEBUG);
+		sumTree.setMetrics(metrics);
+		if (messageCache != null) {
+			sumTree.setMessageCache(messageCache, getEvidenceMask(),
+					getEvidenceValues(), networkVersion);
+		}
+		List<Factor> remaining = (pool == null) ? sumTree.eliminateBuckets()
+				: sumTree.eliminateBuckets(pool);
+
+		// Then maximise out the wanted variables, any missing from the
+		// ordering last.
+		List<VariableType> ordering = new ArrayList<VariableType>(
+				Arrays.asList(eliminationOrdering));
+		for (VariableType var : query) {
+			if (!ordering.contains(var)) {
+				ordering.add(var);
+			}
+		}
+		EliminationTree maxTree = new EliminationTree(remaining,
+				ordering.toArray(new VariableType[ordering.size()]), query);
+		maxTree.setDebug(DEBUG);
+		maxTree.setMetrics(metrics);
+		maxTree.setMaximise(true);
+		if (pool == null) {
+			maxTree.eliminateBuckets();
+		} else {
+			maxTree.eliminateBuckets(pool);
+		}
+
+		EnumMap<VariableType, Boolean> assignment = new EnumMap<VariableType, Boolean>(
+				VariableType.class);
+		maxTree.decode(assignment);
+		for (VariableType var : query) {
+			if (!assignment.containsKey(var)) {
+				// In no relevant table, so every value is as probable.
+				assignment.put(var, false);
+			}
+		}
+
+		resetBayesNet();
+
+		if (metrics != null) {
+			metrics.queryComputed(System.nanoTime() - startTime);
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Eliminates every hidden variable from the factors relevant to the query
+	 * in the given ordering, returning the unnormalised false and true values
+	 * of the query variable.
+	 * 
+	 * @param queryVariable
+	 * @param ordering
+	 * @return
+	 */
+	private double[] eliminate(VariableType queryVariable,
+			VariableType[] ordering) {
+		Factor factor = eliminate(EnumSet.of(queryVariable), ordering);
+
+		return new double[] { factor.getProbability(false),
+				factor.getProbability(true) };
+	}
+
+	/**
+	 * Eliminates every hidden variable from the factors relevant to the query,
+	 * returning the unnormalised factor over the query variables.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	private Factor eliminate(Set<VariableType> queryVariables) {
+		return eliminate(queryVariables,
+				chooseOrdering(queryVariables, getHiddenVariables(queryVariables)));
+	}
 
-		LinkedHashSet<Factor> tempFactors;
-		Iterator<Factor> iter;
-		Factor factor = null;
+	/**
+	 * Eliminates every hidden variable from the factors relevant to the query
+	 * in the given ordering, returning the unnormalised factor over the query
+	 * variables.
+	 * 
+	 * @param queryVariables
+	 * @param ordering
+	 * @return
+	 */
+	private Factor eliminate(Set<VariableType> queryVariables,
+			VariableType[] ordering) {
+		long networkVersion = network.getVersion();
+		LinkedHashMap<VariableType, Factor> factors = createFactors();
 
 		if (DEBUG) {
 			System.out.println("Starting factors:");
 			System.out.println(this);
 		}
 
-		tempFactors = new LinkedHashSet<Factor>();
+		// Leave out the tables that can't affect this query.
+		EnumSet<VariableType> relevant = NetworkPruner.getRelevantVariables(
+				network, queryVariables, evidence.keySet());
+		factors.keySet().retainAll(relevant);
+
+		EnumSet<VariableType> hidden = getHiddenVariables(queryVariables);
+		EliminationTree tree = new EliminationTree(factors, ordering, hidden);
+		tree.setDebug(DEBUG);
+		tree.setMetrics(metrics);
+		if (trace != null) {
+			tree.setTrace(trace, trace.nextQuery());
+		}
+		if (messageCache != null) {
+			tree.setMessageCache(messageCache, getEvidenceMask(),
+					getEvidenceValues(), networkVersion);
+		}
+
+		// Eliminate every bucket, leaving a factor over the query variables.
+		return (pool == null) ? tree.eliminate() : tree.eliminate(pool);
+	}
+
+	/**
+	 * Runs the compiled plan for the query variable and the variables
+	 * observed, compiling it first if this is the first such query.
+	 * 
+	 * @param queryVariable
+	 * @return
+	 */
+	private double[] executePlan(VariableType queryVariable) {
+		long structureVersion = network.getStructureVersion();
+		if (structureVersion != plansStructureVersion) {
+			plans.clear();
+			plansStructureVersion = structureVersion;
+		}
+
+		int evidenceMask = getEvidenceMask();
+		Long key = ((long) evidenceMask << Integer.SIZE)
+				| queryVariable.ordinal();
+		QueryPlan plan = plans.get(key);
+		if (plan == null) {
+			plan = QueryPlan.compile(network, eliminationOrdering,
+					queryVariable, evidenceMask);
+			plans.put(key, plan);
+		}
+
+		long version = network.getVersion();
+		if (tableValues == null || version != tableValuesVersion) {
+			tableValues = QueryPlan.createTableValues(network);
+			tableValuesVersion = version;
+		}
+
+		return plan.execute(tableValues, getEvidenceValues());
+	}
+
+	/**
+	 * Returns the elimination ordering to eliminate the given variables in for
+	 * the query: the elimination ordering if it keeps within the memory
+	 * budget, otherwise the ordering picked by planOrdering if that does.
+	 * Callers can tell whether the elimination ordering fits by checking for
+	 * the same array.
+	 * 
+	 * @param queryVariables
+	 * @param eliminated
+	 * @return
+	 */
+	private VariableType[] chooseOrdering(Set<VariableType> queryVariables,
+			Set<VariableType> eliminated) {
+		if (memoryBudget == Long.MAX_VALUE) {
+			return eliminationOrdering;
+		}
+
+		List<Integer> scopes = getFactorScopes(queryVariables);
+		long largest = estimateLargestFactor(scopes, eliminationOrdering,
+				eliminated);
+		if (largest <= memoryBudget) {
+			return eliminationOrdering;
+		}
+
+		VariableType[] planned = planOrdering(scopes, eliminated);
+		long plannedLargest = estimateLargestFactor(scopes, planned, eliminated);
+		if (plannedLargest > memoryBudget) {
+			throw new IllegalArgumentException("Query needs a factor of "
+					+ Math.min(largest, plannedLargest)
+					+ " cells, over the memory budget of " + memoryBudget);
+		}
+		return planned;
+	}
+
+	/**
+	 * Returns the scopes of the factors relevant to the query, as bit masks
+	 * over the variable ordinals, once the evidence is fixed.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	private List<Integer> getFactorScopes(Set<VariableType> queryVariables) {
+		EnumSet<VariableType> relevant = NetworkPruner.getRelevantVariables(
+				network, queryVariables, evidence.keySet());
+		int evidenceMask = getEvidenceMask();
+
+		List<Integer> scopes = new ArrayList<Integer>();
+		for (VariableType var : relevant) {
+			int scope = 1 << var.ordinal();
+			for (VariableType parent : network.getParents(var)) {
+				scope |= 1 << parent.ordinal();
+			}
+			scope &= ~evidenceMask;
+			if (scope != 0) {
+				scopes.add(scope);
+			}
+		}
+		return scopes;
+	}
+
+	/**
+	 * Returns the number of cells of the largest factor built eliminating the
+	 * given variables from factors of the given scopes in the given ordering,
+	 * including the product of the factors left at the end.
+	 * 
+	 * @param scopes
+	 * @param ordering
+	 * @param eliminated
+	 * @return
+	 */
+	private static long estimateLargestFactor(List<Integer> scopes,
+			VariableType[] ordering, Set<VariableType> eliminated) {
+		List<Integer> remaining = new ArrayList<Integer>(scopes);
+		long largest = 0;
+		for (int scope : remaining) {
+			largest = Math.max(largest, cells(scope));
+		}
+
+		for (VariableType var : ordering) {
+			if (!eliminated.contains(var)) {
+				continue;
+			}
+			int product = removeScopes(remaining, var);
+			if (product != 0) {
+				largest = Math.max(largest, cells(product));
+				remaining.add(product & ~(1 << var.ordinal()));
+			}
+		}
+
+		int product = 0;
+		for (int scope : remaining) {
+			product |= scope;
+		}
+		return Math.max(largest, cells(product));
+	}
+
+	/**
+	 * Returns an ordering of the given variables that greedily eliminates
+	 * next whichever variable builds the smallest factor, taking the earliest
+	 * in the elimination ordering on a tie.
+	 * 
+	 * @param scopes
+	 * @param eliminated
+	 * @return
+	 */
+	private VariableType[] planOrdering(List<Integer> scopes,
+			Set<VariableType> eliminated) {
+		List<VariableType> candidates = new ArrayList<VariableType>();
 		for (VariableType var : eliminationOrdering) {
-			iter = factors.iterator();
+			if (eliminated.contains(var) && !candidates.contains(var)) {
+				candidates.add(var);
+			}
+		}
+		for (VariableType var : eliminated) {
+			if (!candidates.contains(var)) {
+				candidates.add(var);
+			}
+		}
 
-			// Collect all the factors associated with this variable.
-			while (iter.hasNext()) {
-				factor = iter.next();
-				if (factor.contains(var)) {
-					tempFactors.add(factor);
-					iter.remove();
+		List<Integer> remaining = new ArrayList<Integer>(scopes);
+		VariableType[] ordering = new VariableType[candidates.size()];
+		for (int i = 0; i < ordering.length; i++) {
+			VariableType best = null;
+			int bestProduct = 0;
+			for (VariableType var : candidates) {
+				int product = 0;
+				for (int scope : remaining) {
+					if ((scope & (1 << var.ordinal())) != 0) {
+						product |= scope;
+					}
+				}
+				if (best == null
+						|| Integer.bitCount(product) < Integer.bitCount(bestProduct)) {
+					best = var;
+					bestProduct = product;
 				}
 			}
 
-			// If no factors then go on to the next variable in the elimination
-			// order.
-			if (tempFactors.size() == 0) {
-				continue;
+			ordering[i] = best;
+			candidates.remove(best);
+			if (removeScopes(remaining, best) != 0) {
+				remaining.add(bestProduct & ~(1 << best.ordinal()));
 			}
+		}
+		return ordering;
+	}
 
-			// Get resulting factor from all factors
-			factor = Factor.pointwiseProduct(tempFactors);
-			if (isHiddenVariable(var)) {
-				factor.sumOut(var);
+	/**
+	 * Removes the scopes holding the given variable, returning their union.
+	 * 
+	 * @param scopes
+	 * @param var
+	 * @return
+	 */
+	private static int removeScopes(List<Integer> scopes, VariableType var) {
+		int product = 0;
+		Iterator<Integer> iter = scopes.iterator();
+		while (iter.hasNext()) {
+			int scope = iter.next();
+			if ((scope & (1 << var.ordinal())) != 0) {
+				product |= scope;
+				iter.remove();
 			}
+		}
+		return product;
+	}
 
-			tempFactors.clear();;
-			if (!factor.isEmpty()) {
-				tempFactors.add(factor);
+	private static long cells(int scope) {
+		return 1L << Integer.bitCount(scope);
+	}
+
+	/**
+	 * Creates the factors for the conditional probability tables of the Bayes
+	 * net, with the evidence observations fixed. Factors left with no free
+	 * variables are dropped.
+	 * 
+	 * The factors are views of tables built once per version of the network,
+	 * so fixing the evidence copies nothing.
+	 * 
+	 * @return
+	 */
+	private LinkedHashMap<VariableType, Factor> createFactors() {
+		long version = network.getVersion();
+		if (conditionalFactors == null || version != conditionalFactorsVersion) {
+			conditionalFactors = new EnumMap<VariableType, Factor>(
+					VariableType.class);
+			for (VariableType var : network.getVariables()) {
+				conditionalFactors.put(var, Factor.createConditionalFactor(var,
+						network.getParents(var), network.getProbabilities(var)));
 			}
+			conditionalFactorsVersion = version;
+		}
+
+		LinkedHashMap<VariableType, Factor> factors = new LinkedHashMap<VariableType, Factor>();
+		for (VariableType var : network.getVariables()) {
+			factors.put(var, conditionalFactors.get(var).view());
+		}
 
-			if (DEBUG) {
-				System.out.println("Eliminated " + var + ":");
-				System.out.println(this);
-				for (Factor v : tempFactors) {
-					System.out.println(v);
+		for (VariableType var : evidence.keySet()) {
+			Iterator<Factor> iter = factors.values().iterator();
+			Factor factor;
+			while (iter.hasNext()) {
+				factor = iter.next();
+				factor.fixVariable(var, evidence.get(var));
+				if (factor.isEmpty()) {
+					iter.remove();
 				}
 			}
 		}
 
-		// factor has the last resulting factor.
-		// Normalise the final probability.
-		double trueVal = factor.getProbability(true);
-		double falseVal = factor.getProbability(false);
-		double sum = trueVal + falseVal;
+		return factors;
+	}
 
-		// Reset ready for another query if necessary
-		resetBayesNet();
+	/**
+	 * Returns the variables that are neither observed nor query variables.
+	 * 
+	 * @param queryVariables
+	 * @return
+	 */
+	private EnumSet<VariableType> getHiddenVariables(
+			Set<VariableType> queryVariables) {
+		EnumSet<VariableType> hiddenVariables = EnumSet
+				.noneOf(VariableType.class);
+		hiddenVariables.addAll(network.getVariables());
+		hiddenVariables.removeAll(evidence.keySet());
+		hiddenVariables.removeAll(queryVariables);
+		return hiddenVariables;
+	}
 
-		return trueVal / sum;
+	/**
+	 * Returns the observed variables as a bit mask of their ordinals.
+	 * 
+	 * @return
+	 */
+	private int getEvidenceMask() {
+		int evidenceMask = 0;
+		for (VariableType var : evidence.keySet()) {
+			evidenceMask |= 1 << var.ordinal();
+		}
+		return evidenceMask;
 	}
 
 	/**
-	 * Sets an observation of a variable for all factor tables. Removes the
-	 * variable from hidden variables.
+	 * Returns the variables observed to be true as a bit mask of their
+	 * ordinals.
+	 * 
+	 * @return
+	 */
+	private int getEvidenceValues() {
+		int evidenceValues = 0;
+		for (VariableType var : evidence.keySet()) {
+			if (evidence.get(var)) {
+				evidenceValues |= 1 << var.ordinal();
+			}
+		}
+		return evidenceValues;
+	}
+
+	/**
+	 * Sets an observation of a variable, to be fixed in all factor tables when
+	 * the next query is computed.
 	 * 
 	 * @param var
 	 * @param observation
 	 */
 	public void setEvidenceObservation(VariableType var, boolean observation) {
-		Iterator<Factor> iter = factors.iterator();
-		Factor factor;
-		while (iter.hasNext()) {
-			factor = iter.next();
-			factor.fixVariable(var, observation);
-			if (factor.isEmpty()) {
-				iter.remove();
-			}
-		}
-		hiddenVariables.remove(var);
+		evidence.put(var, observation);
 	}
 
 	@Override
 	public String toString() {
 		StringBuffer output = new StringBuffer();
-		for (Factor f : factors) {
+		for (Factor f : createFactors().values()) {
 			output.append(f);
 			output.append('\n');
 		}
 		return output.toString();
 	}
 
-	/**
-	 * Returns true if the variable is a hidden variable.
-	 * 
-	 * @param var
-	 * @return
-	 */
-	private boolean isHiddenVariable(VariableType var) {
-		return hiddenVariables.contains(var);
-	}
-	
 	/**
 	 * Turns on computation console messages.
 	 */